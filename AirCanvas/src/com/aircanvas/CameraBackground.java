@@ -0,0 +1,224 @@
+package com.aircanvas;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+/**
+ * Draws the camera preview as a full screen quad behind the strokes. The
+ * camera streams into a SurfaceTexture bound as GL_TEXTURE_EXTERNAL_OES, so
+ * the image never leaves the GPU and each frame of the canvas shows the
+ * camera frame it was drawn over, with no second surface for the compositor
+ * to blend.
+ *
+ * The image is stretched over the whole view, the same mapping the marker
+ * tracker uses, so a stroke lands where the marker is seen. Needs API 15.
+ */
+public class CameraBackground implements SurfaceTexture.OnFrameAvailableListener {
+
+    /**
+     * Hears about the texture the camera should stream into.
+     */
+    public interface Listener {
+        /**
+         * A new texture was created with a new GL context; the camera must
+         * be moved to it. Called on the GL thread.
+         */
+        void onTextureCreated(SurfaceTexture texture);
+
+        /**
+         * The camera has a new frame for the texture. Called on whatever
+         * thread SurfaceTexture delivers it on.
+         */
+        void onFrameAvailable();
+    }
+
+    private static final String vertexShaderCode =
+            "uniform mat4 uTexMatrix;" +
+            "attribute vec4 vPosition;" +
+            "attribute vec4 vTexCoord;" +
+            "varying vec2 texCoord;" +
+            "void main() {" +
+            "  gl_Position = vPosition;" +
+            "  texCoord = (uTexMatrix * vTexCoord).xy;" +
+            "}";
+
+    // the extension directive has to be on a line of its own
+    private static final String fragmentShaderCode =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "precision mediump float;" +
+            "uniform samplerExternalOES sTexture;" +
+            "varying vec2 texCoord;" +
+            "void main() {" +
+            "  gl_FragColor = texture2D(sTexture, texCoord);" +
+            "}";
+
+    private static final int COORDS_PER_VERTEX = 4; // x, y, s, t
+    private static final int vertexStride = COORDS_PER_VERTEX * 4; // 4 bytes per float
+
+    // a triangle strip over the whole viewport
+    private static final float quad[] = {
+            -1, -1, 0, 0,
+             1, -1, 1, 0,
+            -1,  1, 0, 1,
+             1,  1, 1, 1 };
+    private static final float mirroredQuad[] = {
+            -1, -1, 1, 0,
+             1, -1, 0, 0,
+            -1,  1, 1, 1,
+             1,  1, 0, 1 };
+
+    private final FloatBuffer vertexBuffer;
+    private final FloatBuffer mirroredBuffer;
+    private final float[] texMatrix = new float[16];
+    private final Listener listener;
+    private final AtomicBoolean frameAvailable = new AtomicBoolean();
+    private volatile boolean mirrored;
+
+    private int mProgram;
+    private int mPositionHandle;
+    private int mTexCoordHandle;
+    private int mTexMatrixHandle;
+    private int mSamplerHandle;
+
+    private final int[] texture = new int[1];
+    private SurfaceTexture surfaceTexture;
+    private boolean hasFrame;
+
+    public CameraBackground(Listener listener) {
+        this.listener = listener;
+        vertexBuffer = toBuffer(quad);
+        mirroredBuffer = toBuffer(mirroredQuad);
+    }
+
+    /**
+     * Flips the image left to right, as a front facing camera is shown. May
+     * be called from any thread.
+     */
+    public void setMirrored(boolean mirrored) {
+        this.mirrored = mirrored;
+    }
+
+    /**
+     * Creates the texture and its SurfaceTexture in the new context and
+     * hands them to the listener. The texture of the previous context is
+     * released. Must be called on the GL thread.
+     */
+    public void onSurfaceCreated() {
+        ShaderProgram program = MyGLRenderer.getProgram(
+                vertexShaderCode, fragmentShaderCode,
+                new String[] { "vPosition", "vTexCoord" },
+                new String[] { "uTexMatrix", "sTexture" });
+        mProgram = program.getProgram();
+        mPositionHandle = program.getAttribLocation("vPosition");
+        mTexCoordHandle = program.getAttribLocation("vTexCoord");
+        mTexMatrixHandle = program.getUniformLocation("uTexMatrix");
+        mSamplerHandle = program.getUniformLocation("sTexture");
+
+        if (surfaceTexture != null) {
+            surfaceTexture.release();
+        }
+        GLES20.glGenTextures(1, texture, 0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texture[0]);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+        MyGLRenderer.checkGlError("glTexParameteri");
+
+        surfaceTexture = new SurfaceTexture(texture[0]);
+        surfaceTexture.setOnFrameAvailableListener(this);
+        frameAvailable.set(false);
+        hasFrame = false;
+        listener.onTextureCreated(surfaceTexture);
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture st) {
+        frameAvailable.set(true);
+        listener.onFrameAvailable();
+    }
+
+    /**
+     * Latches the newest camera frame into the texture, if one arrived.
+     * Call once per frame before {@link #draw}.
+     *
+     * @return - Whether the texture holds a new frame.
+     */
+    public boolean latch() {
+        if (surfaceTexture == null || !frameAvailable.getAndSet(false)) {
+            return false;
+        }
+        surfaceTexture.updateTexImage();
+        surfaceTexture.getTransformMatrix(texMatrix);
+        hasFrame = true;
+        return true;
+    }
+
+    /**
+     * @return the GL_TEXTURE_EXTERNAL_OES texture the camera streams into.
+     */
+    public int getTexture() {
+        return texture[0];
+    }
+
+    /**
+     * @return the SurfaceTexture transform of the latched frame.
+     */
+    public float[] getTransformMatrix() {
+        return texMatrix;
+    }
+
+    /**
+     * Draws the latched frame over the whole viewport. Draws nothing before
+     * the first frame.
+     */
+    public void draw() {
+        if (!hasFrame) {
+            return;
+        }
+
+        FloatBuffer vertices = mirrored ? mirroredBuffer : vertexBuffer;
+        GLES20.glUseProgram(mProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texture[0]);
+        GLES20.glUniform1i(mSamplerHandle, 0);
+        GLES20.glUniformMatrix4fv(mTexMatrixHandle, 1, false, texMatrix, 0);
+
+        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        GLES20.glEnableVertexAttribArray(mTexCoordHandle);
+        vertices.position(0);
+        GLES20.glVertexAttribPointer(mPositionHandle, 2,
+                GLES20.GL_FLOAT, false, vertexStride, vertices);
+        vertices.position(2);
+        GLES20.glVertexAttribPointer(mTexCoordHandle, 2,
+                GLES20.GL_FLOAT, false, vertexStride, vertices);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        GLES20.glDisableVertexAttribArray(mPositionHandle);
+        GLES20.glDisableVertexAttribArray(mTexCoordHandle);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+        MyGLRenderer.checkGlError("glDrawArrays");
+    }
+
+    private static FloatBuffer toBuffer(float[] values) {
+        ByteBuffer bb = ByteBuffer.allocateDirect(values.length * 4);
+        bb.order(ByteOrder.nativeOrder());
+        FloatBuffer fb = bb.asFloatBuffer();
+        fb.put(values);
+        fb.position(0);
+        return fb;
+    }
+
+}
@@ -1,8 +1,11 @@
 package com.aircanvas;
 
 import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.util.Log;
+import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
@@ -23,6 +26,29 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
 	Camera.PreviewCallback previewCallback;
 	boolean hidden;
 
+	// preview frames are delivered in these buffers, handed back with addCallbackBuffer
+	static final int PREVIEW_BUFFERS = 3;
+	private byte[][] mBuffers;
+	private Camera mBuffersCamera;
+
+	// in texture mode the preview streams into mTexture and the surface view is never shown
+	private boolean mTextureMode;
+	private SurfaceTexture mTexture;
+
+	// the next tap on the image goes here instead of to the views below
+	private CalibrationListener mCalibrationListener;
+
+	/**
+	 * Hears where the preview image was tapped while calibrating.
+	 */
+	public interface CalibrationListener {
+		/**
+		 * @param x - The tapped point as a fraction 0-1 across the image as shown.
+		 * @param y - The same down the image.
+		 */
+		void onCalibrationTap(float x, float y);
+	}
+
 	@SuppressWarnings("deprecation")
 	public CameraPreview(Context context, Camera.PreviewCallback previewCallback, boolean hidden ) {
 		super(context);
@@ -100,16 +126,110 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
 		}
 	}
 
+	/**
+	 * Streams the preview into a texture from now on instead of showing it, for when the
+	 * frames are drawn with OpenGL. The preview starts once {@link #setPreviewTexture} has
+	 * been called. Needs API 11.
+	 */
+	public void setTextureMode() {
+		mTextureMode = true;
+		mSurfaceView.setVisibility(View.GONE);
+	}
+
+	/**
+	 * Moves the preview to a new texture, restarting it if the camera is open. Null stops
+	 * it until the next texture arrives.
+	 */
+	public void setPreviewTexture(SurfaceTexture texture) {
+		mTexture = texture;
+		if (mCamera != null) {
+			mCamera.stopPreview();
+			if (texture != null) {
+				startPreview();
+			}
+		}
+	}
+
+	/**
+	 * Sends the next tap on the preview image to listener. Touches pass through to the views
+	 * below as usual otherwise. UI thread only.
+	 */
+	public void startCalibration(CalibrationListener listener) {
+		mCalibrationListener = listener;
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent e) {
+		if (mCalibrationListener == null) {
+			return false;
+		}
+		if (e.getAction() == MotionEvent.ACTION_UP) {
+			// a texture is stretched over the whole view, the surface view is centered in it
+			View image = mTextureMode ? this : mSurfaceView;
+			int left = mTextureMode ? 0 : image.getLeft();
+			int top = mTextureMode ? 0 : image.getTop();
+			float x = (e.getX() - left) / Math.max(1, image.getWidth());
+			float y = (e.getY() - top) / Math.max(1, image.getHeight());
+			CalibrationListener listener = mCalibrationListener;
+			mCalibrationListener = null;
+			listener.onCalibrationTap(Math.min(Math.max(x, 0), 1), Math.min(Math.max(y, 0), 1));
+		}
+		return true;
+	}
+
 	protected void startPreview() {
 		try {
-			mCamera.setPreviewDisplay(mHolder);
-			mCamera.setPreviewCallback(previewCallback);
+			if (mTextureMode) {
+				if (mTexture == null) {
+					return;
+				}
+				mCamera.setPreviewTexture(mTexture);
+			} else {
+				mCamera.setPreviewDisplay(mHolder);
+			}
+			queueBuffers();
+			mCamera.setPreviewCallbackWithBuffer(previewCallback);
 			mCamera.startPreview();
 		} catch (Exception e){
 			Log.d(TAG, "Error starting camera preview: " + e.getMessage());
 		}
 	}
 
+	/**
+	 * Gives the camera a small pool of preview buffers, once per camera, so frames are
+	 * not allocated one by one. The buffers are reused when the camera is reopened at
+	 * the same preview size.
+	 */
+	private void queueBuffers() {
+		if (mBuffersCamera == mCamera || previewCallback == null) {
+			return;
+		}
+		Camera.Parameters param = mCamera.getParameters();
+		Camera.Size size = param.getPreviewSize();
+		int bytes = size.width * size.height * ImageFormat.getBitsPerPixel(param.getPreviewFormat()) / 8;
+		if (mBuffers == null || mBuffers[0].length != bytes) {
+			mBuffers = new byte[PREVIEW_BUFFERS][bytes];
+		}
+		for (byte[] buffer : mBuffers) {
+			mCamera.addCallbackBuffer(buffer);
+		}
+		mBuffersCamera = mCamera;
+	}
+
+	/**
+	 * Stops the preview, applies new parameters such as a new preview size, and starts it again
+	 * with buffers of the new size. The buffers queued for the old size are dropped.
+	 */
+	public void changeParameters(Camera.Parameters param) {
+		mCamera.stopPreview();
+		// clears the camera's buffer queue
+		mCamera.setPreviewCallbackWithBuffer(null);
+		mCamera.setParameters(param);
+		mBuffersCamera = null;
+		startPreview();
+		requestLayout();
+	}
+
 	@Override
 	public void surfaceCreated(SurfaceHolder holder) {
 		if (mCamera == null) {
@@ -0,0 +1,487 @@
+package com.aircanvas;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.opengl.Matrix;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Renders the finished strokes into an offscreen framebuffer at any
+ * resolution and writes the result to a PNG file, without stalling the
+ * on-screen render loop.
+ *
+ * The image is cut into tiles no larger than the GPU allows, and one tile
+ * is rendered per frame, each with its own slice of the view frustum so
+ * strokes outside the tile are culled. On an OpenGL ES 3 context a tile is
+ * read into a pixel buffer object and collected a frame or more later, once
+ * its fence has signalled. Otherwise glReadPixels is called on a few rows
+ * at a time, spread over several frames. Completed bands of tiles go to a
+ * worker thread that streams them into the PNG, so the whole image never
+ * has to be held in memory. Bands are only as many rows high as fit in
+ * {@link #MAX_BAND_BYTES}, however wide the image, and their arrays are
+ * reused from one band to the next.
+ *
+ * {@link #request} may be called from any thread; everything else runs on
+ * the GL thread.
+ */
+public class CanvasExporter {
+
+    private static final String TAG = "CanvasExporter";
+
+    public interface Listener {
+        /**
+         * Called on the encoder thread once the file is complete or the
+         * export has failed.
+         */
+        void onExportFinished(File file, boolean success);
+    }
+
+    static final int MAX_TILE_SIZE = 1024;
+    // rows read per frame when there are no pixel buffer objects
+    static final int ROWS_PER_FRAME = 64;
+    // bands rendered ahead of the encoder before rendering pauses
+    static final int MAX_BANDS_IN_FLIGHT = 2;
+    // a band's rows are limited so it takes at most this much heap, wide exports have lower bands
+    static final int MAX_BAND_BYTES = 4 * 1024 * 1024;
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    // set by request() on any thread, taken by the GL thread
+    private volatile Job mRequested;
+    private volatile boolean mBusy;
+
+    private final ExecutorService mEncoder = Executors.newSingleThreadExecutor();
+    private final AtomicInteger mBandsInFlight = new AtomicInteger();
+
+    private boolean mUsePbo;
+    private int mTileSize = MAX_TILE_SIZE;
+    private final int[] mFramebuffer = new int[1];
+    private final int[] mTexture = new int[1];
+    private final int[] mPbo = new int[1];
+    private ByteBuffer mRows;
+
+    // the export in progress, GL thread only
+    private Job mJob;
+
+    private final float[] mProjection = new float[16];
+    private final float[] mMVP = new float[16];
+
+    private static class Job {
+        final File file;
+        final int width;
+        final int height;
+        final Listener listener;
+        final float[] view = new float[16];
+        // rows per band, and the tiles in it, set when the export starts
+        int bandRows;
+        // band arrays the encoder is done with, for the GL thread to fill again
+        final ConcurrentLinkedQueue<byte[]> freeBands = new ConcurrentLinkedQueue<byte[]>();
+
+        int tileX;
+        int tileY;
+        byte[] band;
+        boolean waiting;
+        long fence;
+        int rowsRead;
+
+        volatile boolean failed;
+
+        // encoder thread only
+        OutputStream out;
+        PngWriter png;
+
+        Job(File file, int width, int height, Listener listener) {
+            this.file = file;
+            this.width = width;
+            this.height = height;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Starts exporting the strokes as they are seen by the current camera,
+     * stretched to width x height pixels.
+     *
+     * @return - false if an export is already running.
+     */
+    public synchronized boolean request(File file, int width, int height, Listener listener) {
+        if (mBusy) {
+            return false;
+        }
+        mBusy = true;
+        mRequested = new Job(file, width, height, listener);
+        return true;
+    }
+
+    /**
+     * @return whether an export is waiting or running. Safe to call from any
+     * thread; while true the renderer needs frames to make progress.
+     */
+    public boolean isBusy() {
+        return mBusy;
+    }
+
+    /**
+     * Stops the encoder thread once the bands already handed to it are
+     * written. An export still rendering is abandoned without telling its
+     * listener, and exports requested afterwards cannot finish. May be
+     * called from any thread.
+     */
+    public void release() {
+        mEncoder.shutdown();
+    }
+
+    /**
+     * Checks what the new context supports. An export that was running in
+     * the old context cannot be finished and is reported as failed.
+     */
+    public void onSurfaceCreated() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        mUsePbo = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                && version != null && version.startsWith("OpenGL ES 3");
+
+        int[] max = new int[2];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, max, 0);
+        mTileSize = Math.min(MAX_TILE_SIZE, max[0]);
+        GLES20.glGetIntegerv(GLES20.GL_MAX_VIEWPORT_DIMS, max, 0);
+        mTileSize = Math.min(mTileSize, Math.min(max[0], max[1]));
+
+        mFramebuffer[0] = 0;
+        mTexture[0] = 0;
+        mPbo[0] = 0;
+        if (mJob != null) {
+            Log.w(TAG, "context lost during export of " + mJob.file);
+            fail(mJob);
+            mJob = null;
+        }
+    }
+
+    /**
+     * Advances the export by at most one tile. Call once per frame after
+     * the on-screen scene is drawn.
+     *
+     * @param strokes - The strokes to render.
+     * @param viewMatrix - The camera; copied when an export starts.
+     * @param surfaceWidth - Viewport to restore afterwards.
+     * @param surfaceHeight - Viewport to restore afterwards.
+     */
+    public void step(StrokeStore strokes, float[] viewMatrix, int surfaceWidth, int surfaceHeight) {
+        if (mJob == null) {
+            mJob = mRequested;
+            mRequested = null;
+            if (mJob == null) {
+                return;
+            }
+            System.arraycopy(viewMatrix, 0, mJob.view, 0, 16);
+            int rowBytes = mJob.width * BYTES_PER_PIXEL;
+            mJob.bandRows = Math.max(1, Math.min(mTileSize, MAX_BAND_BYTES / rowBytes));
+            createTargets();
+        }
+        Job job = mJob;
+
+        if (job.waiting) {
+            if (mUsePbo) {
+                collectPbo(job);
+            } else {
+                readRows(job);
+            }
+        } else if (mBandsInFlight.get() < MAX_BANDS_IN_FLIGHT) {
+            renderTile(job, strokes);
+        }
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, surfaceWidth, surfaceHeight);
+        MyGLRenderer.checkGlError("export");
+    }
+
+    private void createTargets() {
+        if (mFramebuffer[0] != 0) {
+            return;
+        }
+        GLES20.glGenTextures(1, mTexture, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mTileSize, mTileSize, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        GLES20.glGenFramebuffers(1, mFramebuffer, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTexture[0], 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            Log.e(TAG, "export framebuffer incomplete: " + status);
+        }
+
+        if (mUsePbo) {
+            GLES20.glGenBuffers(1, mPbo, 0);
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbo[0]);
+            GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER,
+                    mTileSize * mTileSize * BYTES_PER_PIXEL, null, GLES30.GL_STREAM_READ);
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        } else if (mRows == null) {
+            mRows = ByteBuffer.allocateDirect(mTileSize * ROWS_PER_FRAME * BYTES_PER_PIXEL);
+            mRows.order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private void deleteTargets() {
+        GLES20.glDeleteFramebuffers(1, mFramebuffer, 0);
+        GLES20.glDeleteTextures(1, mTexture, 0);
+        if (mPbo[0] != 0) {
+            GLES20.glDeleteBuffers(1, mPbo, 0);
+        }
+        mFramebuffer[0] = 0;
+        mTexture[0] = 0;
+        mPbo[0] = 0;
+    }
+
+    private int tileWidth(Job job) {
+        return Math.min(mTileSize, job.width - job.tileX * mTileSize);
+    }
+
+    private int bandHeight(Job job) {
+        return Math.min(job.bandRows, job.height - job.tileY * job.bandRows);
+    }
+
+    private void renderTile(Job job, StrokeStore strokes) {
+        int tw = tileWidth(job);
+        int bh = bandHeight(job);
+        if (job.band == null) {
+            // every band but the last is full height, so any free array fits
+            job.band = job.freeBands.poll();
+            if (job.band == null) {
+                job.band = new byte[job.width * job.bandRows * BYTES_PER_PIXEL];
+            }
+        }
+
+        // the slice of the full export frustum this tile covers; bands are
+        // counted from the top, GL counts rows from the bottom
+        float ratio = (float) job.width / job.height;
+        int x0 = job.tileX * mTileSize;
+        int y0 = job.height - job.tileY * job.bandRows - bh;
+        Matrix.frustumM(mProjection, 0,
+                -ratio + 2 * ratio * x0 / job.width,
+                -ratio + 2 * ratio * (x0 + tw) / job.width,
+                -1 + 2f * y0 / job.height,
+                -1 + 2f * (y0 + bh) / job.height,
+                3, 7);
+        Matrix.multiplyMM(mMVP, 0, mProjection, 0, job.view, 0);
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+        GLES20.glViewport(0, 0, tw, bh);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        strokes.draw(mMVP);
+
+        if (mUsePbo) {
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbo[0]);
+            GLES30.glReadPixels(0, 0, tw, bh, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            job.fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        } else {
+            job.rowsRead = 0;
+        }
+        job.waiting = true;
+    }
+
+    /**
+     * Copies the tile out of the pixel buffer object once the GPU has
+     * finished writing it; returns at once if it has not.
+     */
+    private void collectPbo(Job job) {
+        int result = GLES30.glClientWaitSync(job.fence, 0, 0);
+        if (result == GLES30.GL_TIMEOUT_EXPIRED) {
+            return;
+        }
+        GLES30.glDeleteSync(job.fence);
+
+        int tw = tileWidth(job);
+        int bh = bandHeight(job);
+        int rowBytes = tw * BYTES_PER_PIXEL;
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbo[0]);
+        ByteBuffer pixels = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER,
+                0, rowBytes * bh, GLES30.GL_MAP_READ_BIT);
+        if (pixels != null) {
+            for (int row = 0; row < bh; row++) {
+                pixels.position(row * rowBytes);
+                pixels.get(job.band, bandOffset(job, row), rowBytes);
+            }
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        } else {
+            Log.e(TAG, "could not map the export pixel buffer");
+            job.failed = true;
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        tileDone(job);
+    }
+
+    /**
+     * Reads the next few rows of the tile with a blocking glReadPixels,
+     * keeping the stall of each frame short.
+     */
+    private void readRows(Job job) {
+        int tw = tileWidth(job);
+        int bh = bandHeight(job);
+        int rows = Math.min(ROWS_PER_FRAME, bh - job.rowsRead);
+        int rowBytes = tw * BYTES_PER_PIXEL;
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+        mRows.clear();
+        GLES20.glReadPixels(0, job.rowsRead, tw, rows, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mRows);
+        for (int row = 0; row < rows; row++) {
+            mRows.position(row * rowBytes);
+            mRows.get(job.band, bandOffset(job, job.rowsRead + row), rowBytes);
+        }
+        job.rowsRead += rows;
+        if (job.rowsRead == bh) {
+            tileDone(job);
+        }
+    }
+
+    /**
+     * @return where row (counted from the bottom of the tile) of the current
+     * tile starts in the band, which keeps GL's bottom-up row order.
+     */
+    private int bandOffset(Job job, int row) {
+        return (row * job.width + job.tileX * mTileSize) * BYTES_PER_PIXEL;
+    }
+
+    private void tileDone(final Job job) {
+        job.waiting = false;
+        job.tileX++;
+        if (job.tileX * mTileSize < job.width) {
+            return;
+        }
+
+        final byte[] band = job.band;
+        final int bh = bandHeight(job);
+        mBandsInFlight.incrementAndGet();
+        boolean queued = encode(new Runnable() {
+            @Override
+            public void run() {
+                encodeBand(job, band, bh);
+                mBandsInFlight.decrementAndGet();
+            }
+        });
+        if (!queued) {
+            mBandsInFlight.decrementAndGet();
+            job.failed = true;
+            deleteTargets();
+            mJob = null;
+            mBusy = false;
+            return;
+        }
+        job.band = null;
+        job.tileX = 0;
+        job.tileY++;
+        if (job.tileY * job.bandRows < job.height) {
+            return;
+        }
+
+        encode(new Runnable() {
+            @Override
+            public void run() {
+                finish(job);
+            }
+        });
+        deleteTargets();
+        mJob = null;
+        mBusy = false;
+    }
+
+    /**
+     * Encoder thread: appends a band, top row first, then hands its array
+     * back for another band.
+     */
+    private void encodeBand(Job job, byte[] band, int rows) {
+        if (job.failed) {
+            return;
+        }
+        try {
+            if (job.png == null) {
+                job.out = new BufferedOutputStream(new FileOutputStream(job.file), 64 * 1024);
+                job.png = new PngWriter(job.out, job.width, job.height);
+            }
+            int rowBytes = job.width * BYTES_PER_PIXEL;
+            job.png.writeRows(band, (rows - 1) * rowBytes, -rowBytes, rows);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + job.file, e);
+            job.failed = true;
+        } finally {
+            job.freeBands.offer(band);
+        }
+    }
+
+    /**
+     * Encoder thread: completes the file and tells the listener.
+     */
+    private void finish(Job job) {
+        boolean success = !job.failed;
+        try {
+            if (success) {
+                job.png.finish();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + job.file, e);
+            success = false;
+        } finally {
+            if (job.out != null) {
+                try {
+                    job.out.close();
+                } catch (IOException e) {
+                    success = false;
+                }
+            }
+        }
+        if (!success) {
+            job.file.delete();
+        }
+        if (job.listener != null) {
+            job.listener.onExportFinished(job.file, success);
+        }
+    }
+
+    private void fail(final Job job) {
+        job.failed = true;
+        encode(new Runnable() {
+            @Override
+            public void run() {
+                finish(job);
+            }
+        });
+        mBusy = false;
+    }
+
+    /**
+     * Hands work to the encoder thread, or drops it if {@link #release} has
+     * already stopped the thread.
+     *
+     * @return - false if the work was dropped.
+     */
+    private boolean encode(Runnable work) {
+        try {
+            mEncoder.execute(work);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "encoder released, dropping export work");
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.aircanvas;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes a canvas of finished strokes in a compact binary format.
+ * All values are little-endian 32-bit ints or floats:
+ *
+ * <pre>
+ * header     magic "ACNV", version, stroke count, sequence number of the
+ *            last {@link StrokeJournal} record included (0 for none)
+ * table      per stroke: data offset in bytes, centerline point count,
+ *            strip vertex count, RGBA color, minX, minY, minZ, maxX, maxY, maxZ
+ * data       per stroke: centerline x, y, z, then strip x, y, z, packed
+ * </pre>
+ *
+ * Files are memory-mapped in both directions. Strokes read back keep
+ * read-only views on the mapping instead of copies of their geometry, so
+ * loading touches no stroke data until a {@link StrokeStore} copies each
+ * strip once into its arenas, and the stored strip and bounds are used as
+ * they are instead of tessellating the strokes again.
+ *
+ * Safe to call from any thread.
+ */
+public class CanvasFile {
+
+    static final int MAGIC = 'A' | 'C' << 8 | 'N' << 16 | 'V' << 24;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    // offset, two counts, 4 color and 6 bound floats
+    static final int ENTRY_BYTES = (3 + 4 + 6) * 4;
+
+    private static final int COORDS_PER_VERTEX = TriLine.COORDS_PER_VERTEX;
+
+    /**
+     * Writes the strokes to a temporary file next to file and renames it
+     * over file once complete, so an interrupted save leaves the previous
+     * canvas intact, and strokes read from the previous file keep their
+     * mapping of it.
+     *
+     * @param journalSequence - The last journal record the strokes include.
+     */
+    public static void write(File file, List<TriLine> lines, int journalSequence)
+            throws IOException {
+        int count = lines.size();
+        long size = HEADER_BYTES + (long) count * ENTRY_BYTES;
+        for (int i = 0; i < count; i++) {
+            TriLine line = lines.get(i);
+            size += 4L * (line.getPointCount() + line.getVertexCount()) * COORDS_PER_VERTEX;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("canvas too large to map: " + size + " bytes");
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(size);
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            // a view of the whole file, indexed in floats from its start
+            FloatBuffer floats = map.asFloatBuffer();
+            map.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(journalSequence);
+
+            int offset = HEADER_BYTES + count * ENTRY_BYTES;
+            for (int i = 0; i < count; i++) {
+                TriLine line = lines.get(i);
+                map.putInt(offset)
+                        .putInt(line.getPointCount())
+                        .putInt(line.getVertexCount());
+                putFloats(map, line.color, 4);
+                putFloats(map, line.getBounds(), 6);
+
+                floats.position(offset / 4);
+                floats.put(line.centerline.duplicate());
+                floats.put(line.triLineCoords.duplicate());
+                offset += 4 * (line.getPointCount() + line.getVertexCount()) * COORDS_PER_VERTEX;
+            }
+            map.force();
+        } finally {
+            raf.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("could not replace " + file);
+        }
+    }
+
+    /**
+     * Maps file and restores its strokes, whose geometry stays in the
+     * mapping. The result is not yet attached to a renderer, so this can
+     * run on a background thread.
+     *
+     * @throws IOException - If the file cannot be read or is not a canvas
+     * file of a supported version.
+     */
+    public static List<TriLine> read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not a canvas file");
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            FloatBuffer floats = map.asFloatBuffer();
+
+            if (map.getInt() != MAGIC) {
+                throw new IOException(file + " is not a canvas file");
+            }
+            int version = map.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has unsupported version " + version);
+            }
+            int count = map.getInt();
+            map.getInt(); // journal sequence, see readJournalSequence
+            if (count < 0 || HEADER_BYTES + (long) count * ENTRY_BYTES > size) {
+                throw new IOException(file + " is truncated");
+            }
+
+            ArrayList<TriLine> lines = new ArrayList<TriLine>(count);
+            for (int i = 0; i < count; i++) {
+                int offset = map.getInt();
+                int points = map.getInt();
+                int vertices = map.getInt();
+                float[] color = getFloats(map, 4);
+                float[] bounds = getFloats(map, 6);
+
+                long end = offset + 4L * COORDS_PER_VERTEX * ((long) points + vertices);
+                if (offset < HEADER_BYTES || (offset & 3) != 0 || points < 0 || vertices < 0
+                        || end > size) {
+                    throw new IOException(file + " has a corrupt entry for stroke " + i);
+                }
+
+                int first = offset / 4;
+                FloatBuffer centerline = view(floats, first, points * COORDS_PER_VERTEX);
+                FloatBuffer strip = view(floats, first + points * COORDS_PER_VERTEX,
+                        vertices * COORDS_PER_VERTEX);
+                lines.add(new TriLine(centerline, strip, color, bounds));
+            }
+            return lines;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the sequence number of the last journal record included in
+     * the canvas saved in file.
+     */
+    public static int readJournalSequence(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            FileChannel channel = in.getChannel();
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    throw new IOException(file + " is not a canvas file");
+                }
+            }
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a canvas file");
+            }
+            return header.getInt(12);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return a buffer sharing floats [first, first + count) of floats.
+     */
+    private static FloatBuffer view(FloatBuffer floats, int first, int count) {
+        floats.limit(first + count);
+        floats.position(first);
+        FloatBuffer view = floats.slice();
+        floats.limit(floats.capacity());
+        return view;
+    }
+
+    private static void putFloats(MappedByteBuffer map, float[] values, int count) {
+        for (int i = 0; i < count; i++) {
+            map.putFloat(values[i]);
+        }
+    }
+
+    private static float[] getFloats(MappedByteBuffer map, int count) {
+        float[] values = new float[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = map.getFloat();
+        }
+        return values;
+    }
+
+}
@@ -0,0 +1,242 @@
+package com.aircanvas;
+
+/**
+ * Classifies Y, U, V samples as the marker's color or not. The colors that
+ * pass are held as a table with one row per V value, each the inclusive
+ * range of U that passes at that V, plus the range of V with any passing
+ * row and a luma floor. A sample is tested with compares and at most one
+ * read of a 2 KB table, at the full 8-bit resolution of each component.
+ *
+ * Whatever decides which colors pass, a box of ranges or a model fitted to
+ * samples of the marker, runs once per U, V pair when the table is built,
+ * which takes well under a millisecond; building again when the lighting
+ * changes is cheap enough to do between two frames. The table can hold any
+ * region whose rows of U are unbroken and whose luma floor does not depend
+ * on chroma, as boxes and ellipses in U, V are.
+ *
+ * Tables never change once built, so one may be handed to another thread
+ * as it is.
+ */
+public class ColorTable {
+
+    // a fitted color passes within this many standard deviations in chroma
+    static final float CHROMA_SIGMAS = 3;
+    // floor on the chroma standard deviation, so a flat patch still covers its neighbors
+    static final float MIN_CHROMA_SIGMA = 4;
+    // luma may drop to this fraction of the sampled mean, or this many deviations below it
+    static final float MIN_LUMA_FRACTION = 0.5f;
+    static final float LUMA_SIGMAS = 3;
+    // patches closer to gray than this in U, V cannot be told from the background
+    static final float MIN_SATURATION = 12;
+
+    private static final int LEVELS = 256;
+
+    // the V values with any passing U, an empty range if there are none
+    final int vMin;
+    final int vMax;
+    // the passing U at each V, empty where uMin > uMax
+    final int[] uMin = new int[LEVELS];
+    final int[] uMax = new int[LEVELS];
+    // the darkest luma that passes, 256 if none does
+    final int yMin;
+
+    /**
+     * A table passing the colors inside an inclusive box of U and V ranges
+     * with at least the given luma, all 0-255.
+     */
+    public static ColorTable fromRange(int uMin, int uMax, int vMin, int vMax, int yMin) {
+        return new ColorTable(new Range(uMin, uMax, vMin, vMax, yMin));
+    }
+
+    /**
+     * A table passing the colors close to samples taken from the marker:
+     * chroma within an ellipse fitted to the samples' U and V, and luma not
+     * far below theirs, so shading and dimmer light still pass.
+     *
+     * @param samples - Y, U, V of each sample, one after another, 0-255.
+     * @param count - Number of samples.
+     * @return - The table, or null if the samples are too close to gray to
+     * be told from the background.
+     */
+    public static ColorTable fromSamples(int[] samples, int count) {
+        if (count <= 0) {
+            return null;
+        }
+        float sumY = 0;
+        float sumU = 0;
+        float sumV = 0;
+        for (int i = 0; i < count; i++) {
+            sumY += samples[3 * i];
+            sumU += samples[3 * i + 1];
+            sumV += samples[3 * i + 2];
+        }
+        float meanY = sumY / count;
+        float meanU = sumU / count;
+        float meanV = sumV / count;
+
+        float yy = 0;
+        float uu = 0;
+        float uv = 0;
+        float vv = 0;
+        for (int i = 0; i < count; i++) {
+            float dy = samples[3 * i] - meanY;
+            float du = samples[3 * i + 1] - meanU;
+            float dv = samples[3 * i + 2] - meanV;
+            yy += dy * dy;
+            uu += du * du;
+            uv += du * dv;
+            vv += dv * dv;
+        }
+        float floor = MIN_CHROMA_SIGMA * MIN_CHROMA_SIGMA;
+        uu = uu / count + floor;
+        uv = uv / count;
+        vv = vv / count + floor;
+
+        float du = meanU - 128;
+        float dv = meanV - 128;
+        if (du * du + dv * dv < MIN_SATURATION * MIN_SATURATION) {
+            return null;
+        }
+
+        float sigmaY = (float) Math.sqrt(yy / count);
+        float yMin = Math.min(meanY * MIN_LUMA_FRACTION, meanY - LUMA_SIGMAS * sigmaY);
+        return new ColorTable(new Ellipse(meanU, meanV, uu, uv, vv, yMin));
+    }
+
+    private ColorTable(Rule rule) {
+        int first = LEVELS;
+        int last = -1;
+        for (int v = 0; v < LEVELS; v++) {
+            int lo = 0;
+            while (lo < LEVELS && !rule.passesChroma(lo, v)) {
+                lo++;
+            }
+            int hi = LEVELS - 1;
+            while (hi >= lo && !rule.passesChroma(hi, v)) {
+                hi--;
+            }
+            uMin[v] = lo;
+            uMax[v] = hi;
+            if (lo <= hi) {
+                first = Math.min(first, v);
+                last = v;
+            }
+        }
+        vMin = first;
+        vMax = last;
+
+        int y = 0;
+        while (y < LEVELS && !rule.passesLuma(y)) {
+            y++;
+        }
+        yMin = y;
+    }
+
+    /**
+     * @return whether some color with this V passes; a sample failing this
+     * fails {@link #containsChroma}.
+     */
+    public boolean containsV(int v) {
+        return v >= vMin && v <= vMax;
+    }
+
+    /**
+     * @return whether some luma of this chroma passes; a sample failing
+     * this fails {@link #contains} whatever its luma.
+     */
+    public boolean containsChroma(int u, int v) {
+        return v >= vMin && v <= vMax && u >= uMin[v] && u <= uMax[v];
+    }
+
+    /**
+     * @return whether the sample has the marker's color.
+     */
+    public boolean contains(int y, int u, int v) {
+        return y >= yMin && containsChroma(u, v);
+    }
+
+    /**
+     * @return the share of all colors that pass, 0-1.
+     */
+    public float getCoverage() {
+        long chroma = 0;
+        for (int v = 0; v < LEVELS; v++) {
+            chroma += Math.max(0, uMax[v] - uMin[v] + 1);
+        }
+        return (float) (chroma * (LEVELS - yMin)) / (LEVELS * LEVELS * LEVELS);
+    }
+
+    /**
+     * Decides which colors pass while a table is built. The luma test must
+     * pass every luma above one that passes.
+     */
+    private interface Rule {
+        boolean passesChroma(float u, float v);
+
+        boolean passesLuma(float y);
+    }
+
+    private static class Range implements Rule {
+        private final int uMin;
+        private final int uMax;
+        private final int vMin;
+        private final int vMax;
+        private final int yMin;
+
+        Range(int uMin, int uMax, int vMin, int vMax, int yMin) {
+            this.uMin = uMin;
+            this.uMax = uMax;
+            this.vMin = vMin;
+            this.vMax = vMax;
+            this.yMin = yMin;
+        }
+
+        @Override
+        public boolean passesChroma(float u, float v) {
+            return u >= uMin && u <= uMax && v >= vMin && v <= vMax;
+        }
+
+        @Override
+        public boolean passesLuma(float y) {
+            return y >= yMin;
+        }
+    }
+
+    /**
+     * Chroma within {@link #CHROMA_SIGMAS} of a mean, by the Mahalanobis
+     * distance of a U, V covariance.
+     */
+    private static class Ellipse implements Rule {
+        private final float meanU;
+        private final float meanV;
+        // the inverse covariance
+        private final float invUU;
+        private final float invUV;
+        private final float invVV;
+        private final float yMin;
+
+        Ellipse(float meanU, float meanV, float uu, float uv, float vv, float yMin) {
+            this.meanU = meanU;
+            this.meanV = meanV;
+            float det = uu * vv - uv * uv;
+            invUU = vv / det;
+            invUV = -uv / det;
+            invVV = uu / det;
+            this.yMin = yMin;
+        }
+
+        @Override
+        public boolean passesChroma(float u, float v) {
+            float du = u - meanU;
+            float dv = v - meanV;
+            float d2 = du * du * invUU + 2 * du * dv * invUV + dv * dv * invVV;
+            return d2 <= CHROMA_SIGMAS * CHROMA_SIGMAS;
+        }
+
+        @Override
+        public boolean passesLuma(float y) {
+            return y >= yMin;
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.aircanvas;
+
+/**
+ * A growable list of primitive floats. Appending never boxes, and once the
+ * backing array is large enough for a stroke it is reused by {@link #clear}
+ * so capturing the next stroke allocates nothing.
+ */
+public class FloatList {
+
+    private float[] data;
+    private int size;
+
+    public FloatList(int initialCapacity) {
+        data = new float[Math.max(initialCapacity, 3)];
+    }
+
+    public void add(float value) {
+        if (size == data.length) {
+            grow(size + 1);
+        }
+        data[size++] = value;
+    }
+
+    /**
+     * Appends one x, y, z vertex.
+     */
+    public void add(float x, float y, float z) {
+        if (size + 3 > data.length) {
+            grow(size + 3);
+        }
+        data[size] = x;
+        data[size + 1] = y;
+        data[size + 2] = z;
+        size += 3;
+    }
+
+    public float get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        return data[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Forgets the contents but keeps the backing array for reuse.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return the backing array. Only the first {@link #size} values are valid,
+     * and the array is replaced whenever the list grows.
+     */
+    public float[] array() {
+        return data;
+    }
+
+    public float[] toArray() {
+        float[] copy = new float[size];
+        System.arraycopy(data, 0, copy, 0, size);
+        return copy;
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(data.length * 2, minCapacity);
+        float[] grown = new float[capacity];
+        System.arraycopy(data, 0, grown, 0, size);
+        data = grown;
+    }
+
+}
@@ -0,0 +1,452 @@
+package com.aircanvas;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Turns camera frames into small images for the marker tracker on the GPU.
+ * The camera texture is drawn into a framebuffer a fraction of its size with
+ * a fragment shader that averages each block of camera pixels and converts
+ * it back to YUV, so the CPU only ever sees the reduced image: one pixel per
+ * block, laid out Y, U, V, 255, top row first. See
+ * {@link MarkerTracker#packed}.
+ *
+ * On an OpenGL ES 3 context with GPU timer queries the image is read into
+ * one of two pixel buffer objects and collected on a later frame, once its
+ * fence has signalled, so the GL thread never waits for the GPU. Otherwise
+ * a blocking glReadPixels is used, which is short for an image this small.
+ *
+ * The cost of each image is measured so it can count against the tracking
+ * budget along with the tracker's own time, see {@link #getCostNanos}: the
+ * GL thread's time to draw, read back and copy it, and on the asynchronous
+ * path the GPU's time for the draw and readback from a timer query. The
+ * blocking readback already waits for the GPU.
+ *
+ * Collected images are copied into a small pool of arrays and offered to a
+ * {@link FrameProcessor}, which hands them back through {@link #recycle}.
+ * When every array is still in use the image is skipped.
+ *
+ * {@link #setTarget} and {@link #recycle} may be called from any thread;
+ * everything else runs on the GL thread.
+ */
+public class FrameDownsampler implements FrameProcessor.Recycler {
+
+    private static final String TAG = "FrameDownsampler";
+
+    private static final String vertexShaderCode =
+            "uniform mat4 uTexMatrix;" +
+            "uniform vec2 uTapOffset;" +
+            "attribute vec4 vPosition;" +
+            "attribute vec2 vTexCoord;" +
+            "varying vec4 taps0;" +
+            "varying vec4 taps1;" +
+            "void main() {" +
+            "  gl_Position = vPosition;" +
+            "  vec2 d = uTapOffset;" +
+            "  taps0.xy = (uTexMatrix * vec4(vTexCoord + vec2(-d.x, -d.y), 0.0, 1.0)).xy;" +
+            "  taps0.zw = (uTexMatrix * vec4(vTexCoord + vec2( d.x, -d.y), 0.0, 1.0)).xy;" +
+            "  taps1.xy = (uTexMatrix * vec4(vTexCoord + vec2(-d.x,  d.y), 0.0, 1.0)).xy;" +
+            "  taps1.zw = (uTexMatrix * vec4(vTexCoord + vec2( d.x,  d.y), 0.0, 1.0)).xy;" +
+            "}";
+
+    // four bilinear taps, each the mean of 2x2 camera pixels, cover a 4x4 block;
+    // the result is converted with the full range BT.601 matrix NV21 frames use
+    private static final String fragmentShaderCode =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "precision mediump float;" +
+            "uniform samplerExternalOES sTexture;" +
+            "varying vec4 taps0;" +
+            "varying vec4 taps1;" +
+            "void main() {" +
+            "  vec3 rgb = 0.25 * (texture2D(sTexture, taps0.xy).rgb" +
+            "      + texture2D(sTexture, taps0.zw).rgb" +
+            "      + texture2D(sTexture, taps1.xy).rgb" +
+            "      + texture2D(sTexture, taps1.zw).rgb);" +
+            "  float y = dot(rgb, vec3(0.299, 0.587, 0.114));" +
+            "  float u = dot(rgb, vec3(-0.168736, -0.331264, 0.5)) + 0.5;" +
+            "  float v = dot(rgb, vec3(0.5, -0.418688, -0.081312)) + 0.5;" +
+            "  gl_FragColor = vec4(y, u, v, 1.0);" +
+            "}";
+
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int COORDS_PER_VERTEX = 4; // x, y, s, t
+    private static final int vertexStride = COORDS_PER_VERTEX * 4; // 4 bytes per float
+    // arrays shared with the processor
+    static final int POOL_SIZE = 3;
+    // readbacks that can be in flight on ES 3
+    static final int PBO_COUNT = 2;
+    // from GL_EXT_disjoint_timer_query, which GLES30 has no names for
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+    // the bottom row of the framebuffer gets the top of the image, so rows are read top first
+    private static final float quad[] = {
+            -1, -1, 0, 1,
+             1, -1, 1, 1,
+            -1,  1, 0, 0,
+             1,  1, 1, 0 };
+
+    private static class Target {
+        final FrameProcessor processor;
+        final int width;
+        final int height;
+
+        Target(FrameProcessor processor, int width, int height) {
+            this.processor = processor;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final FloatBuffer vertexBuffer;
+    private final ConcurrentLinkedQueue<byte[]> mFree = new ConcurrentLinkedQueue<byte[]>();
+    private volatile Target mRequested;
+    private volatile int mFrameBytes;
+
+    private volatile int mReduced;
+    private volatile int mSkipped;
+    private volatile long mCostNanos;
+
+    // GL thread only
+    private Target mTarget;
+    private boolean mUsePbo;
+    private int mProgram;
+    private int mPositionHandle;
+    private int mTexCoordHandle;
+    private int mTexMatrixHandle;
+    private int mTapOffsetHandle;
+    private int mSamplerHandle;
+    private final int[] mFramebuffer = new int[1];
+    private final int[] mTexture = new int[1];
+    private final int[] mPbo = new int[PBO_COUNT];
+    private final long[] mFences = new long[PBO_COUNT];
+    // a GPU timer per readback, and the GL thread's time issuing it
+    private final int[] mQueries = new int[PBO_COUNT];
+    private final long[] mIssueNanos = new long[PBO_COUNT];
+    private final int[] mQueryResult = new int[1];
+    private long mGpuNanos;
+    private int mNextPbo;
+    private ByteBuffer mPixels;
+
+    public FrameDownsampler() {
+        ByteBuffer bb = ByteBuffer.allocateDirect(quad.length * 4);
+        bb.order(ByteOrder.nativeOrder());
+        vertexBuffer = bb.asFloatBuffer();
+        vertexBuffer.put(quad);
+        vertexBuffer.position(0);
+    }
+
+    /**
+     * Starts sending width x height images to processor, or stops with
+     * null. The shader averages 4x4 blocks of camera pixels, so the image
+     * should be a quarter of the camera frame each way. Takes effect on the
+     * next frame.
+     */
+    public void setTarget(FrameProcessor processor, int width, int height) {
+        mRequested = processor == null ? null : new Target(processor, width, height);
+    }
+
+    /**
+     * Returns an image array to the pool.
+     */
+    @Override
+    public void recycle(byte[] buffer) {
+        // arrays of an earlier, differently sized target are let go
+        if (buffer.length == mFrameBytes) {
+            mFree.offer(buffer);
+        }
+    }
+
+    /**
+     * @return images offered to the processor.
+     */
+    public int getReducedCount() {
+        return mReduced;
+    }
+
+    /**
+     * @return images thrown away because every pool array was in use.
+     */
+    public int getSkippedCount() {
+        return mSkipped;
+    }
+
+    /**
+     * @return the time the most recently offered image took to reduce, read
+     * back and copy, in nanoseconds. May be called from any thread.
+     */
+    public long getCostNanos() {
+        return mCostNanos;
+    }
+
+    /**
+     * Checks what the new context supports and forgets the objects of the
+     * previous one. Readbacks still in flight there are lost.
+     */
+    public void onSurfaceCreated() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        // without a timer the GPU's share of an asynchronous readback could not be measured
+        mUsePbo = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                && version != null && version.startsWith("OpenGL ES 3")
+                && extensions != null && extensions.contains("GL_EXT_disjoint_timer_query");
+
+        ShaderProgram program = MyGLRenderer.getProgram(
+                vertexShaderCode, fragmentShaderCode,
+                new String[] { "vPosition", "vTexCoord" },
+                new String[] { "uTexMatrix", "uTapOffset", "sTexture" });
+        mProgram = program.getProgram();
+        mPositionHandle = program.getAttribLocation("vPosition");
+        mTexCoordHandle = program.getAttribLocation("vTexCoord");
+        mTexMatrixHandle = program.getUniformLocation("uTexMatrix");
+        mTapOffsetHandle = program.getUniformLocation("uTapOffset");
+        mSamplerHandle = program.getUniformLocation("sTexture");
+
+        mTarget = null;
+        mFramebuffer[0] = 0;
+        mTexture[0] = 0;
+        for (int i = 0; i < PBO_COUNT; i++) {
+            mPbo[i] = 0;
+            mFences[i] = 0;
+            mQueries[i] = 0;
+        }
+        mGpuNanos = 0;
+    }
+
+    /**
+     * Collects finished readbacks and, when the camera texture holds a new
+     * frame, reduces it and starts reading it back. Call once per frame,
+     * after the texture has been latched.
+     *
+     * @param cameraTexture - The GL_TEXTURE_EXTERNAL_OES camera texture.
+     * @param texMatrix - Its SurfaceTexture transform.
+     * @param newFrame - Whether the texture changed since the last call.
+     * @param surfaceWidth - Viewport to restore afterwards.
+     * @param surfaceHeight - Viewport to restore afterwards.
+     */
+    public void step(int cameraTexture, float[] texMatrix, boolean newFrame,
+            int surfaceWidth, int surfaceHeight) {
+        Target requested = mRequested;
+        if (requested != mTarget) {
+            deleteTargets();
+            mTarget = requested;
+            if (mTarget != null) {
+                createTargets();
+            }
+        }
+        if (mTarget == null) {
+            return;
+        }
+
+        if (mUsePbo) {
+            for (int i = 0; i < PBO_COUNT; i++) {
+                collectPbo(i);
+            }
+        }
+        if (!newFrame) {
+            return;
+        }
+        if (mUsePbo && mFences[mNextPbo] != 0) {
+            // both readbacks are still in flight, leave this frame out
+            mSkipped++;
+            return;
+        }
+
+        long start = System.nanoTime();
+        if (mUsePbo) {
+            GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, mQueries[mNextPbo]);
+            render(cameraTexture, texMatrix);
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbo[mNextPbo]);
+            GLES30.glReadPixels(0, 0, mTarget.width, mTarget.height,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+            mFences[mNextPbo] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            mIssueNanos[mNextPbo] = System.nanoTime() - start;
+            mNextPbo = (mNextPbo + 1) % PBO_COUNT;
+        } else {
+            render(cameraTexture, texMatrix);
+            mPixels.clear();
+            GLES20.glReadPixels(0, 0, mTarget.width, mTarget.height,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mPixels);
+            deliver(mPixels, System.nanoTime() - start);
+        }
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, surfaceWidth, surfaceHeight);
+        MyGLRenderer.checkGlError("downsample");
+    }
+
+    private void render(int cameraTexture, float[] texMatrix) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+        GLES20.glViewport(0, 0, mTarget.width, mTarget.height);
+
+        GLES20.glUseProgram(mProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, cameraTexture);
+        GLES20.glUniform1i(mSamplerHandle, 0);
+        GLES20.glUniformMatrix4fv(mTexMatrixHandle, 1, false, texMatrix, 0);
+        GLES20.glUniform2f(mTapOffsetHandle, 0.25f / mTarget.width, 0.25f / mTarget.height);
+
+        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        GLES20.glEnableVertexAttribArray(mTexCoordHandle);
+        vertexBuffer.position(0);
+        GLES20.glVertexAttribPointer(mPositionHandle, 2,
+                GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
+        vertexBuffer.position(2);
+        GLES20.glVertexAttribPointer(mTexCoordHandle, 2,
+                GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        GLES20.glDisableVertexAttribArray(mPositionHandle);
+        GLES20.glDisableVertexAttribArray(mTexCoordHandle);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+    }
+
+    /**
+     * Hands the image in readback pixel buffer i to the processor if the GPU
+     * has finished writing it; returns at once if it has not.
+     */
+    private void collectPbo(int i) {
+        if (mFences[i] == 0) {
+            return;
+        }
+        int result = GLES30.glClientWaitSync(mFences[i], 0, 0);
+        if (result == GLES30.GL_TIMEOUT_EXPIRED) {
+            return;
+        }
+        GLES30.glDeleteSync(mFences[i]);
+        mFences[i] = 0;
+
+        long start = System.nanoTime();
+        long cost = mIssueNanos[i] + gpuNanos(i);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbo[i]);
+        ByteBuffer pixels = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER,
+                0, mFrameBytes, GLES30.GL_MAP_READ_BIT);
+        if (pixels != null) {
+            deliver(pixels, cost + System.nanoTime() - start);
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        } else {
+            Log.e(TAG, "could not map the readback pixel buffer");
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    /**
+     * The GPU time of readback i, which has completed. A result spoiled by a
+     * disjoint event, such as a clock change, is replaced by the last good
+     * one.
+     */
+    private long gpuNanos(int i) {
+        GLES30.glGetQueryObjectuiv(mQueries[i], GLES30.GL_QUERY_RESULT_AVAILABLE, mQueryResult, 0);
+        if (mQueryResult[0] == 0) {
+            return mGpuNanos;
+        }
+        GLES30.glGetQueryObjectuiv(mQueries[i], GLES30.GL_QUERY_RESULT, mQueryResult, 0);
+        long nanos = mQueryResult[0] & 0xffffffffL;
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mQueryResult, 0);
+        if (mQueryResult[0] == 0) {
+            mGpuNanos = nanos;
+        }
+        return mGpuNanos;
+    }
+
+    /**
+     * Copies the image into a pool array and offers it to the processor.
+     *
+     * @param costNanos - Time spent on the image so far, to which the copy
+     * is added.
+     */
+    private void deliver(ByteBuffer pixels, long costNanos) {
+        byte[] frame = mFree.poll();
+        if (frame == null) {
+            mSkipped++;
+            return;
+        }
+        long start = System.nanoTime();
+        pixels.position(0);
+        pixels.get(frame, 0, mFrameBytes);
+        mCostNanos = costNanos + System.nanoTime() - start;
+        mReduced++;
+        mTarget.processor.offer(frame);
+    }
+
+    private void createTargets() {
+        int width = mTarget.width;
+        int height = mTarget.height;
+        int bytes = width * height * BYTES_PER_PIXEL;
+        if (bytes != mFrameBytes) {
+            mFrameBytes = bytes;
+            mFree.clear();
+            for (int i = 0; i < POOL_SIZE; i++) {
+                mFree.offer(new byte[bytes]);
+            }
+        }
+
+        GLES20.glGenTextures(1, mTexture, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        GLES20.glGenFramebuffers(1, mFramebuffer, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTexture[0], 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            Log.e(TAG, "downsample framebuffer incomplete: " + status);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        if (mUsePbo) {
+            GLES20.glGenBuffers(PBO_COUNT, mPbo, 0);
+            for (int i = 0; i < PBO_COUNT; i++) {
+                GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbo[i]);
+                GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, bytes, null, GLES30.GL_STREAM_READ);
+            }
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            GLES30.glGenQueries(PBO_COUNT, mQueries, 0);
+            mNextPbo = 0;
+        } else if (mPixels == null || mPixels.capacity() < bytes) {
+            mPixels = ByteBuffer.allocateDirect(bytes);
+            mPixels.order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private void deleteTargets() {
+        if (mFramebuffer[0] == 0) {
+            return;
+        }
+        for (int i = 0; i < PBO_COUNT; i++) {
+            if (mFences[i] != 0) {
+                GLES30.glDeleteSync(mFences[i]);
+                mFences[i] = 0;
+            }
+        }
+        GLES20.glDeleteFramebuffers(1, mFramebuffer, 0);
+        GLES20.glDeleteTextures(1, mTexture, 0);
+        if (mPbo[0] != 0) {
+            GLES20.glDeleteBuffers(PBO_COUNT, mPbo, 0);
+            GLES30.glDeleteQueries(PBO_COUNT, mQueries, 0);
+        }
+        mFramebuffer[0] = 0;
+        mTexture[0] = 0;
+        for (int i = 0; i < PBO_COUNT; i++) {
+            mPbo[i] = 0;
+            mQueries[i] = 0;
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+package com.aircanvas;
+
+/**
+ * Hands camera frames to a dedicated processing thread through a single
+ * latest-frame-wins slot. If a new frame arrives while the previous one is
+ * still waiting in the slot, the waiting one is stale: it is handed back to
+ * the producer unprocessed and counted as dropped. Slow processing therefore
+ * skips frames instead of falling further and further behind the camera.
+ *
+ * Frames are never copied. Buffers travel from the producer, through the
+ * slot, to the consumer and back to the producer via the {@link Recycler},
+ * so a small fixed pool of buffers serves the whole preview.
+ */
+public class FrameProcessor {
+
+    /**
+     * Processes a frame on the processing thread.
+     */
+    public interface Consumer {
+        void onFrame(byte[] frame);
+    }
+
+    /**
+     * Gives a buffer back to whoever fills frames, once it has been
+     * processed or dropped. Called on the processing thread or the thread
+     * calling {@link #offer}.
+     */
+    public interface Recycler {
+        void recycle(byte[] buffer);
+    }
+
+    private final Consumer mConsumer;
+    private final Recycler mRecycler;
+    private final Object mLock = new Object();
+
+    // guarded by mLock
+    private byte[] mSlot;
+    private boolean mRunning;
+    private Thread mThread;
+
+    private volatile int mOffered;
+    private volatile int mProcessed;
+    private volatile int mDropped;
+
+    public FrameProcessor(Consumer consumer, Recycler recycler) {
+        mConsumer = consumer;
+        mRecycler = recycler;
+    }
+
+    /**
+     * Starts the processing thread.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    processLoop();
+                }
+            }, "FrameProcessor");
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stops the processing thread and waits for the frame in progress to
+     * finish. The frame left in the slot, if any, is recycled. Once this
+     * returns the consumer is not called again.
+     */
+    public void stop() {
+        Thread thread;
+        byte[] pending;
+        synchronized (mLock) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            thread = mThread;
+            mThread = null;
+            pending = mSlot;
+            mSlot = null;
+            mLock.notifyAll();
+        }
+        if (pending != null) {
+            mRecycler.recycle(pending);
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Puts a frame in the slot, replacing and recycling a frame that has not
+     * been picked up yet. A frame offered while stopped is recycled at once.
+     */
+    public void offer(byte[] frame) {
+        byte[] stale;
+        synchronized (mLock) {
+            mOffered++;
+            if (!mRunning) {
+                stale = frame;
+            } else {
+                stale = mSlot;
+                mSlot = frame;
+                mLock.notifyAll();
+            }
+        }
+        if (stale != null) {
+            if (stale != frame) {
+                mDropped++;
+            }
+            mRecycler.recycle(stale);
+        }
+    }
+
+    /**
+     * @return frames handed to {@link #offer}.
+     */
+    public int getOfferedCount() {
+        return mOffered;
+    }
+
+    /**
+     * @return frames that reached the consumer.
+     */
+    public int getProcessedCount() {
+        return mProcessed;
+    }
+
+    /**
+     * @return frames replaced in the slot by a newer frame before the
+     * consumer got to them.
+     */
+    public int getDroppedCount() {
+        return mDropped;
+    }
+
+    private void processLoop() {
+        while (true) {
+            byte[] frame;
+            synchronized (mLock) {
+                while (mRunning && mSlot == null) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // only stop() ends the loop
+                    }
+                }
+                if (!mRunning) {
+                    return;
+                }
+                frame = mSlot;
+                mSlot = null;
+            }
+            try {
+                mConsumer.onFrame(frame);
+                mProcessed++;
+            } finally {
+                mRecycler.recycle(frame);
+            }
+        }
+    }
+
+}
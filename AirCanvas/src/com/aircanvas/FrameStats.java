@@ -0,0 +1,100 @@
+package com.aircanvas;
+
+import java.util.Arrays;
+
+/**
+ * Per-frame measurements kept in preallocated ring buffers: CPU time spent
+ * in onDrawFrame, draw calls, vertices submitted and bytes uploaded to
+ * buffer objects. Percentiles are computed over the last {@link #capacity}
+ * frames. Recording and querying allocate nothing.
+ */
+public class FrameStats {
+
+    public static final int FRAME_TIME_NS = 0;
+    public static final int DRAW_CALLS = 1;
+    public static final int VERTICES = 2;
+    public static final int UPLOAD_BYTES = 3;
+    static final int METRICS = 4;
+
+    private final int capacity;
+    private final long[][] samples;
+    private final long[] sorted;
+    private int next;
+    private int count;
+    private long frameStart;
+
+    public FrameStats(int capacity) {
+        this.capacity = capacity;
+        samples = new long[METRICS][capacity];
+        sorted = new long[capacity];
+    }
+
+    public void beginFrame() {
+        frameStart = System.nanoTime();
+    }
+
+    public void endFrame(int drawCalls, int vertices, int uploadBytes) {
+        samples[FRAME_TIME_NS][next] = System.nanoTime() - frameStart;
+        samples[DRAW_CALLS][next] = drawCalls;
+        samples[VERTICES][next] = vertices;
+        samples[UPLOAD_BYTES][next] = uploadBytes;
+        next = (next + 1) % capacity;
+        if (count < capacity) {
+            count++;
+        }
+    }
+
+    /**
+     * @return the number of frames currently held, at most the capacity.
+     */
+    public int getSampleCount() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param metric - One of the metric constants.
+     * @param age - 0 for the most recent frame, 1 for the one before, and so on.
+     */
+    public long get(int metric, int age) {
+        return samples[metric][(next - 1 - age + 2 * capacity) % capacity];
+    }
+
+    /**
+     * @param metric - One of the metric constants.
+     * @param percent - 50 for the median, 99 for the 99th percentile.
+     * @return - The nearest-rank percentile, or 0 before any frame was recorded.
+     */
+    public long percentile(int metric, int percent) {
+        if (count == 0) {
+            return 0;
+        }
+        System.arraycopy(samples[metric], 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        int rank = (int) Math.ceil(percent / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(rank, count - 1))];
+    }
+
+    /**
+     * @return a one line summary of the p50/p95/p99 of every metric.
+     */
+    public String summary() {
+        return "frame ms " + millis(50) + "/" + millis(95) + "/" + millis(99)
+                + ", draw calls " + percentiles(DRAW_CALLS)
+                + ", vertices " + percentiles(VERTICES)
+                + ", upload bytes " + percentiles(UPLOAD_BYTES)
+                + " (p50/p95/p99 of " + count + " frames)";
+    }
+
+    private String millis(int percent) {
+        return String.valueOf(percentile(FRAME_TIME_NS, percent) / 10000 / 100f);
+    }
+
+    private String percentiles(int metric) {
+        return percentile(metric, 50) + "/" + percentile(metric, 95) + "/" + percentile(metric, 99);
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.aircanvas;
+
+/**
+ * The six clip planes of a view, taken from a combined model view
+ * projection matrix, for testing bounding boxes against what is on screen.
+ */
+public class Frustum {
+
+    // a, b, c, d for left, right, bottom, top, near and far; inside when a*x + b*y + c*z + d >= 0
+    private final float[] planes = new float[24];
+
+    /**
+     * Extracts the planes from a column-major matrix as produced by
+     * android.opengl.Matrix.
+     */
+    public void set(float[] mvpMatrix) {
+        for (int p = 0; p < 6; p++) {
+            int row = p / 2;
+            float sign = p % 2 == 0 ? 1 : -1;
+            for (int c = 0; c < 4; c++) {
+                planes[p * 4 + c] = mvpMatrix[c * 4 + 3] + sign * mvpMatrix[c * 4 + row];
+            }
+        }
+    }
+
+    /**
+     * @param bounds - minX, minY, minZ, maxX, maxY, maxZ.
+     * @return false only if the box lies entirely outside one of the planes.
+     */
+    public boolean intersects(float[] bounds) {
+        for (int p = 0; p < 24; p += 4) {
+            float a = planes[p], b = planes[p + 1], c = planes[p + 2];
+            // the corner farthest along the plane normal
+            float x = a > 0 ? bounds[3] : bounds[0];
+            float y = b > 0 ? bounds[4] : bounds[1];
+            float z = c > 0 ? bounds[5] : bounds[2];
+            if (a * x + b * y + c * z + planes[p + 3] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
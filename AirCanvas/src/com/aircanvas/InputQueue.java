@@ -0,0 +1,119 @@
+package com.aircanvas;
+
+/**
+ * A lock-free single-producer/single-consumer ring of input commands. The
+ * UI thread turns touch events into commands with {@link #offer} and the GL
+ * thread applies all pending commands at the start of a frame with
+ * {@link #drain}, so renderer state is only ever touched on the GL thread.
+ *
+ * Commands are stored in parallel primitive arrays, so neither side
+ * allocates. Each carries the time of the input it came from, so pointer
+ * samples can be placed in time after they have waited in the queue.
+ */
+public class InputQueue {
+
+    public static final int PAN_LEFT = 1;
+    public static final int PAN_RIGHT = 2;
+    public static final int PAN_FORWARD = 3;
+    public static final int PAN_BACK = 4;
+    public static final int DRAW = 5;
+    public static final int UP = 6;
+    public static final int UNDO = 7;
+    public static final int REDO = 8;
+
+    // pointer samples are refused once fewer slots than this are free,
+    // so an UP always has room and a stroke is never left open
+    private static final int RESERVED = 8;
+
+    /**
+     * Receives commands on the consumer thread.
+     */
+    public interface Handler {
+        /**
+         * @param timeNanos - When the input happened, on the System.nanoTime
+         * clock.
+         */
+        void onCommand(int command, float x, float y, long timeNanos);
+    }
+
+    private final int mask;
+    private final int[] commands;
+    private final float[] xs;
+    private final float[] ys;
+    private final long[] times;
+
+    // head is only written by the consumer, tail only by the producer
+    private volatile int head;
+    private volatile int tail;
+
+    private volatile int dropped;
+
+    /**
+     * @param capacity - Rounded up to a power of two.
+     */
+    public InputQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, RESERVED * 2) - 1) << 1;
+        mask = size - 1;
+        commands = new int[size];
+        xs = new float[size];
+        ys = new float[size];
+        times = new long[size];
+    }
+
+    /**
+     * Queues a command for input that happened now. Producer thread only.
+     *
+     * @return - false if the queue was too full and the command was dropped.
+     */
+    public boolean offer(int command, float x, float y) {
+        return offer(command, x, y, System.nanoTime());
+    }
+
+    /**
+     * Queues a command for input that happened at timeNanos, on the
+     * System.nanoTime clock. Producer thread only.
+     *
+     * @return - false if the queue was too full and the command was dropped.
+     */
+    public boolean offer(int command, float x, float y, long timeNanos) {
+        int t = tail;
+        int free = commands.length - (t - head);
+        if (free == 0 || (command == DRAW && free <= RESERVED)) {
+            dropped++;
+            return false;
+        }
+        int i = t & mask;
+        commands[i] = command;
+        xs[i] = x;
+        ys[i] = y;
+        times[i] = timeNanos;
+        // the volatile write publishes the slot contents to the consumer
+        tail = t + 1;
+        return true;
+    }
+
+    /**
+     * Hands every queued command to handler in order. Consumer thread only.
+     *
+     * @return - The number of commands handled.
+     */
+    public int drain(Handler handler) {
+        int h = head;
+        int t = tail;
+        for (int n = h; n != t; n++) {
+            int i = n & mask;
+            handler.onCommand(commands[i], xs[i], ys[i], times[i]);
+        }
+        // the volatile write hands the slots back to the producer
+        head = t;
+        return t - h;
+    }
+
+    /**
+     * @return the number of commands refused because the queue was full.
+     */
+    public int getDroppedCount() {
+        return dropped;
+    }
+
+}
@@ -0,0 +1,216 @@
+package com.aircanvas;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import android.opengl.GLES20;
+
+/**
+ * Draws the stroke that is still being captured as a triangle strip from
+ * the same {@link StrokeTessellator} that finished strokes are committed
+ * with, so the stroke keeps its width when the pointer lifts. The strip is
+ * streamed into a GL_DYNAMIC_DRAW buffer object: vertices are appended with
+ * glBufferSubData once the points after them make them final, only the end
+ * of the strip, the last point and its cap, is rewritten every frame, and
+ * the buffer is only reallocated when a stroke outgrows it.
+ *
+ * An optional tip, such as a predicted pointer position, is drawn as one
+ * more point in the rewritten end for that frame only, so the next captured
+ * point simply takes its place.
+ */
+public class LiveStroke {
+
+    private static final String vertexShaderCode =
+            "uniform mat4 uMVPMatrix;" +
+            "attribute vec4 vPosition;" +
+            "void main() {" +
+            "  gl_Position = uMVPMatrix * vPosition;" +
+            "}";
+
+    private static final String fragmentShaderCode =
+            "precision mediump float;" +
+            "uniform vec4 vColor;" +
+            "void main() {" +
+            "  gl_FragColor = vColor;" +
+            "}";
+
+    static final int COORDS_PER_VERTEX = 3;
+    private static final int vertexStride = COORDS_PER_VERTEX * 4; // 4 bytes per float
+
+    float color[] = { 0.2f, 0.709803922f, 0.898039216f, 1.0f };
+
+    private int mProgram;
+    private int mPositionHandle;
+    private int mColorHandle;
+    private int mMVPMatrixHandle;
+
+    private final StrokeTessellator tessellator;
+    private final StrokeTessellator.Progress progress = new StrokeTessellator.Progress();
+    private final StrokeTessellator.Progress tipProgress = new StrokeTessellator.Progress();
+    private final FloatList strip = new FloatList(3 * 64);
+    private final FloatList tipPoints = new FloatList(3 * 16);
+
+    private final int[] buffer = new int[1];
+    private FloatBuffer staging;
+    private int capacity;      // vertices the buffer object can hold
+    private int stable;        // final strip vertices, held at the start of staging
+    private int uploaded;      // final vertices already copied to the buffer object
+    private int generation = -1;
+
+    /**
+     * @param initialCapacity - Strip vertices to make room for up front.
+     * @param tessellator - The tessellator finished strokes are committed with.
+     */
+    public LiveStroke(int initialCapacity, StrokeTessellator tessellator) {
+        this.tessellator = tessellator;
+        allocateStaging(initialCapacity);
+    }
+
+    /**
+     * Looks up the shared program and forgets the buffer object of the
+     * previous context. Must be called on the GL thread.
+     */
+    public void onSurfaceCreated() {
+        ShaderProgram program = MyGLRenderer.getProgram(
+                vertexShaderCode, fragmentShaderCode,
+                new String[] { "vPosition" },
+                new String[] { "vColor", "uMVPMatrix" });
+        mProgram = program.getProgram();
+        mPositionHandle = program.getAttribLocation("vPosition");
+        mColorHandle = program.getUniformLocation("vColor");
+        mMVPMatrixHandle = program.getUniformLocation("uMVPMatrix");
+
+        buffer[0] = 0;
+        uploaded = 0;
+    }
+
+    /**
+     * Tessellates the newly captured points, appends the vertices they make
+     * final to the buffer object and draws the stroke so far.
+     *
+     * @param mvpMatrix - The Model View Project matrix in which to draw.
+     * @param points - Captured x, y, z coordinates.
+     * @param strokeGeneration - Changes whenever a new stroke starts, so the
+     * buffer is refilled from the beginning.
+     * @param tip - x, y, z of one more point drawn after the captured points
+     * this frame only, or null.
+     * @return - The number of vertices drawn, 0 if there was nothing to draw.
+     */
+    public int draw(float[] mvpMatrix, FloatList points, int strokeGeneration, float[] tip) {
+        int count = points.size() / COORDS_PER_VERTEX;
+        if (strokeGeneration != generation) {
+            generation = strokeGeneration;
+            progress.reset();
+            stable = 0;
+            uploaded = 0;
+        }
+        if (count < 1) {
+            return 0;
+        }
+
+        // the vertices the new points made final go after the earlier ones
+        strip.clear();
+        int done = tessellator.tessellateGrowing(points.array(), count, progress, strip);
+        ensureStaging(stable + done);
+        staging.position(stable * COORDS_PER_VERTEX);
+        staging.put(strip.array(), 0, done * COORDS_PER_VERTEX);
+        stable += done;
+
+        // then the end of the strip, from the last point or through the tip
+        float[] end = strip.array();
+        int endOffset = done * COORDS_PER_VERTEX;
+        int endFloats = strip.size() - endOffset;
+        if (tip != null) {
+            int from = Math.max(progress.point, 0);
+            tipPoints.clear();
+            float[] captured = points.array();
+            for (int i = from * COORDS_PER_VERTEX; i < count * COORDS_PER_VERTEX;
+                    i += COORDS_PER_VERTEX) {
+                tipPoints.add(captured[i], captured[i + 1], captured[i + 2]);
+            }
+            tipPoints.add(tip[0], tip[1], tip[2]);
+            tipProgress.set(progress);
+            if (progress.point != -1) {
+                tipProgress.point = 0;
+            }
+            strip.clear();
+            tessellator.tessellateGrowing(tipPoints.array(), tipPoints.size() / COORDS_PER_VERTEX,
+                    tipProgress, strip);
+            end = strip.array();
+            endOffset = 0;
+            endFloats = strip.size();
+        }
+        int drawn = stable + endFloats / COORDS_PER_VERTEX;
+        ensureStaging(drawn);
+
+        if (buffer[0] == 0) {
+            GLES20.glGenBuffers(1, buffer, 0);
+            capacity = 0;
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer[0]);
+
+        if (drawn > capacity) {
+            // outgrown, reallocate and copy the whole strip again
+            capacity = staging.capacity() / COORDS_PER_VERTEX;
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER,
+                    capacity * vertexStride, null, GLES20.GL_DYNAMIC_DRAW);
+            uploaded = 0;
+        }
+        if (uploaded < stable) {
+            int offset = uploaded * COORDS_PER_VERTEX;
+            int floats = (stable - uploaded) * COORDS_PER_VERTEX;
+            staging.position(offset);
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER,
+                    offset * 4, floats * 4, staging);
+            MyGLRenderer.countUpload(floats * 4);
+            uploaded = stable;
+        }
+        if (endFloats > 0) {
+            int offset = stable * COORDS_PER_VERTEX;
+            staging.position(offset);
+            staging.put(end, endOffset, endFloats);
+            staging.position(offset);
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER,
+                    offset * 4, endFloats * 4, staging);
+            MyGLRenderer.countUpload(endFloats * 4);
+        }
+
+        GLES20.glUseProgram(mProgram);
+        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        GLES20.glVertexAttribPointer(
+                mPositionHandle, COORDS_PER_VERTEX,
+                GLES20.GL_FLOAT, false,
+                vertexStride, 0);
+        GLES20.glUniform4fv(mColorHandle, 1, color, 0);
+        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mvpMatrix, 0);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, drawn);
+
+        GLES20.glDisableVertexAttribArray(mPositionHandle);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        MyGLRenderer.checkGlError("glDrawArrays");
+        return drawn;
+    }
+
+    /**
+     * Grows staging to hold at least vertices, keeping the final vertices.
+     */
+    private void ensureStaging(int vertices) {
+        if (vertices <= staging.capacity() / COORDS_PER_VERTEX) {
+            return;
+        }
+        FloatBuffer old = staging;
+        allocateStaging(Math.max(vertices, 2 * old.capacity() / COORDS_PER_VERTEX));
+        old.position(0);
+        old.limit(stable * COORDS_PER_VERTEX);
+        staging.put(old);
+    }
+
+    private void allocateStaging(int vertices) {
+        ByteBuffer bb = ByteBuffer.allocateDirect(vertices * vertexStride);
+        bb.order(ByteOrder.nativeOrder());
+        staging = bb.asFloatBuffer();
+    }
+
+}
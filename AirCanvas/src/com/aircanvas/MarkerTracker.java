@@ -0,0 +1,659 @@
+package com.aircanvas;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Finds a colored marker, such as a colored fingertip cap or pen top, in
+ * NV21 camera frames and turns its motion into pen strokes.
+ *
+ * Each frame is classified by {@link ColorTable} tests per 2x2 block of
+ * pixels, on the interleaved V/U plane first, so U is only read for blocks
+ * whose V can pass and the luma plane only for blocks whose chroma can.
+ * The table comes from a color range or from a calibration on a point of
+ * the marker, see {@link #calibrate}, which is done on the processing
+ * thread. The marker position is the centroid of the passing blocks, from
+ * their zeroth and first moments, in frame pixels. A tracker made with
+ * {@link #packed} reads frames already reduced to one Y, U, V, A pixel per
+ * larger block instead.
+ *
+ * While the marker is being tracked only a window around its predicted
+ * position is scanned: the last box of passing blocks moved by the last
+ * frame's motion and grown by a margin. When the marker is not in the window,
+ * or was not found in the previous frame, the whole frame is scanned coarsely,
+ * testing every other block in both directions, and a window around what the
+ * coarse scan found is then scanned at full resolution.
+ *
+ * Detection is debounced: the pen goes down after the marker has been seen
+ * in {@link #setDebounce enterFrames} consecutive frames and comes up after
+ * it has been missing for exitFrames, so single noisy frames neither start
+ * nor end a stroke.
+ *
+ * A frame allocates nothing unless it serves a calibration.
+ */
+public class MarkerTracker {
+
+    /**
+     * Receives pen events on the thread that calls {@link #process}.
+     */
+    public interface Listener {
+        /**
+         * The marker is down and at x, y in frame pixels. The first call
+         * after {@link #onMarkerUp} starts a new stroke.
+         */
+        void onMarkerMoved(float x, float y);
+
+        /**
+         * The marker has been lost long enough to end the stroke.
+         */
+        void onMarkerUp();
+    }
+
+    /**
+     * Hears the outcome of a {@link #calibrate} request, on the thread that
+     * calls {@link #process}.
+     */
+    public interface CalibrationListener {
+        /**
+         * @param table - The table now in use, or null if the color at the
+         * point was too close to gray and the old table was kept.
+         * @param buildNanos - Time taken to sample the frame and build it.
+         */
+        void onCalibrated(ColorTable table, long buildNanos);
+    }
+
+    private final int width;
+    private final int height;
+    private Listener listener;
+
+    // frame pixels along each side of a block, and blocks across and down the frame
+    private final int block;
+    private final int gridWidth;
+    private final int gridHeight;
+    // the samples of block (bx, by) are at base + by * rowStride + bx * pixelStride
+    private final int yBase;
+    private final int uBase;
+    private final int vBase;
+    private final int yRowStride;
+    private final int chromaRowStride;
+    private final int pixelStride;
+
+    // the marker color, and the table the frame being processed uses
+    private volatile ColorTable colors = ColorTable.fromRange(0, 135, 165, 255, 40);
+    private ColorTable frameColors;
+    private final AtomicReference<Calibration> calibration = new AtomicReference<Calibration>();
+    // samples within this many frame pixels of a calibration point, Y, U, V each
+    private static final int CALIBRATION_RADIUS = 6;
+    private final int calibrationRadius;
+    private final int[] calibrationSamples;
+    // fewer passing blocks than this is noise, not the marker
+    private int minBlocks;
+
+    // blocks tested in each direction by the coarse full frame scan
+    private static final int COARSE_STEP = 2;
+    // scans testing fewer blocks than this are not worth splitting over threads: at about
+    // 2 ns a block, half of a smaller scan saves less than waking a worker costs
+    private static final int MIN_PARALLEL_BLOCKS = 65536;
+    // blocks added on each side of the predicted marker box
+    private int windowMargin;
+    private boolean useWindow = true;
+
+    private int enterFrames = 2;
+    private int exitFrames = 4;
+    private int seenRun;
+    private int missedRun;
+    private boolean down;
+
+    private boolean found;
+    private float x;
+    private float y;
+    private int blocks;
+
+    // the marker in blocks: centroid, motion since the previous frame and box
+    private float centerX;
+    private float centerY;
+    private float velocityX;
+    private float velocityY;
+    private int boxMinX;
+    private int boxMinY;
+    private int boxMaxX;
+    private int boxMaxY;
+
+    // results of the last scan, merged from one part per tile
+    private final Moments scan = new Moments();
+    private TilePool pool;
+    private Moments[] parts = new Moments[0];
+    private final ScanTask scanTask = new ScanTask();
+
+    private long frames;
+    private long processNanos;
+    private long windowFrames;
+    private long fullScans;
+    private long scannedBlocks;
+
+    // defaults, in frame pixels
+    private static final int MIN_MARKER_AREA = 48;
+    private static final int WINDOW_MARGIN = 16;
+
+    /**
+     * Creates a tracker for width x height NV21 frames.
+     */
+    public MarkerTracker(int width, int height) {
+        this(width, height, 2, 0, 2 * width, width * height + 1, width * height, width, 2);
+    }
+
+    /**
+     * Creates a tracker for width x height camera frames that arrive
+     * reduced to one pixel per blockSize x blockSize block: 4 bytes of Y, U,
+     * V and an unused value, row after row from the top, as
+     * {@link FrameDownsampler} produces them. Positions are still reported
+     * in camera frame pixels.
+     */
+    public static MarkerTracker packed(int width, int height, int blockSize) {
+        int rowStride = 4 * (width / blockSize);
+        return new MarkerTracker(width, height, blockSize, 0, rowStride, 1, 2, rowStride, 4);
+    }
+
+    private MarkerTracker(int width, int height, int block, int yBase, int yRowStride,
+            int uBase, int vBase, int chromaRowStride, int pixelStride) {
+        this.width = width;
+        this.height = height;
+        this.block = block;
+        this.gridWidth = width / block;
+        this.gridHeight = height / block;
+        this.yBase = yBase;
+        this.yRowStride = yRowStride;
+        this.uBase = uBase;
+        this.vBase = vBase;
+        this.chromaRowStride = chromaRowStride;
+        this.pixelStride = pixelStride;
+        minBlocks = Math.max(1, MIN_MARKER_AREA / (block * block));
+        windowMargin = Math.max(1, WINDOW_MARGIN / block);
+        calibrationRadius = Math.max(1, CALIBRATION_RADIUS / block);
+        int side = 2 * calibrationRadius + 1;
+        calibrationSamples = new int[3 * side * side];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the marker color as ranges of the U (Cb) and V (Cr) components
+     * and a minimum luma, all 0-255.
+     */
+    public void setColorRange(int uMin, int uMax, int vMin, int vMax, int yMin) {
+        setColorTable(ColorTable.fromRange(uMin, uMax, vMin, vMax, yMin));
+    }
+
+    /**
+     * Sets the marker color. May be called from any thread; takes effect
+     * from the next frame.
+     */
+    public void setColorTable(ColorTable table) {
+        colors = table;
+    }
+
+    public ColorTable getColorTable() {
+        return colors;
+    }
+
+    /**
+     * Asks for the marker color to be taken from the next frame around x, y
+     * in frame pixels, such as where the user tapped the marker. The
+     * sampling and the table are done at the start of the next
+     * {@link #process}, off the thread asking. May be called from any
+     * thread; a request not yet served is replaced.
+     */
+    public void calibrate(float x, float y, CalibrationListener listener) {
+        calibration.set(new Calibration(x, y, listener));
+    }
+
+    /**
+     * @param minBlocks - Fewest blocks of the marker color that count as a
+     * detection. Blocks are 2x2 pixels in NV21 frames.
+     */
+    public void setMinBlocks(int minBlocks) {
+        this.minBlocks = minBlocks;
+    }
+
+    /**
+     * @param margin - Blocks searched around the marker's predicted box.
+     */
+    public void setWindowMargin(int margin) {
+        this.windowMargin = Math.max(0, margin);
+    }
+
+    /**
+     * Turns the search window off to scan every block of every frame, to
+     * compare costs.
+     */
+    public void setUseWindow(boolean useWindow) {
+        this.useWindow = useWindow;
+    }
+
+    /**
+     * Splits large scans, such as full resolution scans of a whole large
+     * frame, into bands of rows run on pool, or runs them on the calling
+     * thread with null. Smaller scans, such as windows and coarse scans of
+     * preview sized frames, stay on the calling thread. The pool must
+     * not be shared with another thread that runs jobs at the same time.
+     */
+    public void setTilePool(TilePool pool) {
+        this.pool = pool;
+        int tiles = pool != null ? pool.getThreads() : 0;
+        parts = new Moments[tiles];
+        for (int i = 0; i < tiles; i++) {
+            parts[i] = new Moments();
+        }
+    }
+
+    /**
+     * @param enterFrames - Consecutive detections before the pen goes down.
+     * @param exitFrames - Consecutive misses before the pen comes up.
+     */
+    public void setDebounce(int enterFrames, int exitFrames) {
+        this.enterFrames = Math.max(1, enterFrames);
+        this.exitFrames = Math.max(1, exitFrames);
+    }
+
+    /**
+     * Locates the marker in one frame and reports pen events to the
+     * listener.
+     *
+     * @param nv21 - A width x height frame: the Y plane followed by
+     * interleaved V and U at half resolution, or a reduced frame for a
+     * tracker made with {@link #packed}.
+     * @return - Whether the marker was found in this frame.
+     */
+    public boolean process(byte[] nv21) {
+        Calibration request = calibration.getAndSet(null);
+        if (request != null) {
+            calibrate(nv21, request);
+        }
+
+        long start = System.nanoTime();
+        frameColors = colors;
+        detect(nv21);
+        frames++;
+        processNanos += System.nanoTime() - start;
+
+        if (found) {
+            missedRun = 0;
+            seenRun++;
+            if (down || seenRun >= enterFrames) {
+                down = true;
+                if (listener != null) {
+                    listener.onMarkerMoved(x, y);
+                }
+            }
+        } else {
+            seenRun = 0;
+            missedRun++;
+            if (down && missedRun >= exitFrames) {
+                down = false;
+                if (listener != null) {
+                    listener.onMarkerUp();
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Forgets the marker, lifting the pen if it was down, for when frames
+     * stop arriving.
+     */
+    public void reset() {
+        seenRun = 0;
+        missedRun = 0;
+        found = false;
+        if (down) {
+            down = false;
+            if (listener != null) {
+                listener.onMarkerUp();
+            }
+        }
+    }
+
+    /**
+     * Builds a table from the blocks around the requested point and uses it
+     * if the color there can be told from gray.
+     */
+    private void calibrate(byte[] nv21, Calibration request) {
+        long start = System.nanoTime();
+        int bx = Math.min(Math.max((int) (request.x / block), 0), gridWidth - 1);
+        int by = Math.min(Math.max((int) (request.y / block), 0), gridHeight - 1);
+        int x0 = Math.max(0, bx - calibrationRadius);
+        int x1 = Math.min(gridWidth - 1, bx + calibrationRadius);
+        int y0 = Math.max(0, by - calibrationRadius);
+        int y1 = Math.min(gridHeight - 1, by + calibrationRadius);
+
+        int[] samples = calibrationSamples;
+        int count = 0;
+        for (int cy = y0; cy <= y1; cy++) {
+            int row = cy * chromaRowStride;
+            int luma = yBase + cy * yRowStride;
+            for (int cx = x0; cx <= x1; cx++) {
+                int offset = cx * pixelStride;
+                samples[3 * count] = nv21[luma + offset] & 0xff;
+                samples[3 * count + 1] = nv21[uBase + row + offset] & 0xff;
+                samples[3 * count + 2] = nv21[vBase + row + offset] & 0xff;
+                count++;
+            }
+        }
+
+        ColorTable table = ColorTable.fromSamples(samples, count);
+        if (table != null) {
+            colors = table;
+        }
+        if (request.listener != null) {
+            request.listener.onCalibrated(table, System.nanoTime() - start);
+        }
+    }
+
+    private static class Calibration {
+        final float x;
+        final float y;
+        final CalibrationListener listener;
+
+        Calibration(float x, float y, CalibrationListener listener) {
+            this.x = x;
+            this.y = y;
+            this.listener = listener;
+        }
+    }
+
+    private void detect(byte[] nv21) {
+
+        if (!useWindow) {
+            fullScans++;
+            scan(nv21, 0, 0, gridWidth, gridHeight, 1);
+            accept(scan.count >= minBlocks);
+            return;
+        }
+
+        if (found) {
+            // the last box, where the last motion would take it
+            int dx = Math.round(velocityX);
+            int dy = Math.round(velocityY);
+            int marginX = windowMargin + Math.abs(dx);
+            int marginY = windowMargin + Math.abs(dy);
+            scanWindow(nv21, boxMinX + dx - marginX, boxMinY + dy - marginY,
+                    boxMaxX + dx + marginX, boxMaxY + dy + marginY);
+            if (scan.count >= minBlocks) {
+                windowFrames++;
+                accept(true);
+                return;
+            }
+        }
+
+        fullScans++;
+        scan(nv21, 0, 0, gridWidth, gridHeight, COARSE_STEP);
+        if (scan.count * COARSE_STEP * COARSE_STEP < minBlocks) {
+            accept(false);
+            return;
+        }
+        int margin = windowMargin + COARSE_STEP;
+        scanWindow(nv21, scan.minX - margin, scan.minY - margin,
+                scan.maxX + margin, scan.maxY + margin);
+        accept(scan.count >= minBlocks);
+    }
+
+    /**
+     * Scans the inclusive box of blocks, clipped to the frame.
+     */
+    private void scanWindow(byte[] nv21, int minX, int minY, int maxX, int maxY) {
+        scan(nv21, Math.max(0, minX), Math.max(0, minY),
+                Math.min(gridWidth, maxX + 1), Math.min(gridHeight, maxY + 1), 1);
+    }
+
+    /**
+     * Tests every step-th block in both directions of [x0, x1) x [y0, y1),
+     * in blocks, and sums the moments of the blocks that pass. Large scans
+     * are split into bands of rows over the tile pool, if there is one.
+     */
+    private void scan(byte[] nv21, int x0, int y0, int x1, int y1, int step) {
+        int columns = (x1 - x0 + step - 1) / step;
+        int rows = (y1 - y0 + step - 1) / step;
+        if (columns <= 0 || rows <= 0) {
+            scan.clear();
+            return;
+        }
+        long tested = (long) columns * rows;
+        scannedBlocks += tested;
+
+        if (pool == null || tested < MIN_PARALLEL_BLOCKS) {
+            scanRows(nv21, x0, y0, x1, y1, step, scan);
+            return;
+        }
+        scanTask.set(nv21, x0, y0, x1, rows, step);
+        pool.run(scanTask);
+        scanTask.frame = null;
+        scan.clear();
+        for (Moments part : parts) {
+            scan.add(part);
+        }
+    }
+
+    /**
+     * The scan of one band of rows; reads only the frame and settings, so
+     * bands can run on several threads at once.
+     */
+    private void scanRows(byte[] nv21, int x0, int y0, int x1, int y1, int step, Moments out) {
+        int count = 0;
+        long sumX = 0;
+        long sumY = 0;
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = -1;
+        int maxY = -1;
+        // ColorTable's tests, inlined with its bounds in locals
+        ColorTable colors = frameColors;
+        int vMin = colors.vMin;
+        int vMax = colors.vMax;
+        int[] uMin = colors.uMin;
+        int[] uMax = colors.uMax;
+        int yMin = colors.yMin;
+
+        for (int cy = y0; cy < y1; cy += step) {
+            int row = cy * chromaRowStride;
+            int luma = yBase + cy * yRowStride;
+            for (int cx = x0; cx < x1; cx += step) {
+                int offset = cx * pixelStride;
+                int v = nv21[vBase + row + offset] & 0xff;
+                if (v < vMin || v > vMax) {
+                    continue;
+                }
+                int u = nv21[uBase + row + offset] & 0xff;
+                if (u < uMin[v] || u > uMax[v]) {
+                    continue;
+                }
+                if ((nv21[luma + offset] & 0xff) < yMin) {
+                    continue;
+                }
+                count++;
+                sumX += cx;
+                sumY += cy;
+                if (cx < minX) minX = cx;
+                if (cx > maxX) maxX = cx;
+                if (cy < minY) minY = cy;
+                if (cy > maxY) maxY = cy;
+            }
+        }
+
+        out.count = count;
+        out.sumX = sumX;
+        out.sumY = sumY;
+        out.minX = minX;
+        out.minY = minY;
+        out.maxX = maxX;
+        out.maxY = maxY;
+    }
+
+    /**
+     * Splits a scan into one band of sampled rows per tile, each summed
+     * into its own part.
+     */
+    private class ScanTask implements TilePool.Task {
+        byte[] frame;
+        int x0;
+        int y0;
+        int x1;
+        int rows;
+        int step;
+
+        void set(byte[] frame, int x0, int y0, int x1, int rows, int step) {
+            this.frame = frame;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.rows = rows;
+            this.step = step;
+        }
+
+        @Override
+        public void runTile(int tile, int tiles) {
+            int first = y0 + step * (int) ((long) rows * tile / tiles);
+            int end = y0 + step * (int) ((long) rows * (tile + 1) / tiles);
+            scanRows(frame, x0, first, x1, end, step, parts[tile]);
+        }
+    }
+
+    /**
+     * Zeroth and first moments and bounding box of passing blocks.
+     */
+    private static class Moments {
+        int count;
+        long sumX;
+        long sumY;
+        int minX;
+        int minY;
+        int maxX;
+        int maxY;
+
+        void clear() {
+            count = 0;
+            sumX = 0;
+            sumY = 0;
+            minX = Integer.MAX_VALUE;
+            minY = Integer.MAX_VALUE;
+            maxX = -1;
+            maxY = -1;
+        }
+
+        void add(Moments other) {
+            count += other.count;
+            sumX += other.sumX;
+            sumY += other.sumY;
+            minX = Math.min(minX, other.minX);
+            minY = Math.min(minY, other.minY);
+            maxX = Math.max(maxX, other.maxX);
+            maxY = Math.max(maxY, other.maxY);
+        }
+    }
+
+    /**
+     * Takes the last scan as this frame's detection, or records a miss.
+     */
+    private void accept(boolean detected) {
+        blocks = scan.count;
+        if (!detected) {
+            found = false;
+            return;
+        }
+        float cx = (float) scan.sumX / scan.count;
+        float cy = (float) scan.sumY / scan.count;
+        if (found) {
+            velocityX = cx - centerX;
+            velocityY = cy - centerY;
+        } else {
+            velocityX = 0;
+            velocityY = 0;
+        }
+        centerX = cx;
+        centerY = cy;
+        boxMinX = scan.minX;
+        boxMinY = scan.minY;
+        boxMaxX = scan.maxX;
+        boxMaxY = scan.maxY;
+        found = true;
+        // block centers in frame pixels
+        x = block * (cx + 0.5f);
+        y = block * (cy + 0.5f);
+    }
+
+    /**
+     * @return whether the pen is currently down.
+     */
+    public boolean isDown() {
+        return down;
+    }
+
+    /**
+     * @return whether the marker was found in the last frame.
+     */
+    public boolean isFound() {
+        return found;
+    }
+
+    /**
+     * @return the marker position in the last frame it was found in.
+     */
+    public float getX() {
+        return x;
+    }
+
+    public float getY() {
+        return y;
+    }
+
+    /**
+     * @return the number of blocks of the marker color in the last frame.
+     */
+    public int getBlockCount() {
+        return blocks;
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * @return frames in which the marker was found inside the search window.
+     */
+    public long getWindowFrameCount() {
+        return windowFrames;
+    }
+
+    /**
+     * @return frames that needed a scan of the whole frame.
+     */
+    public long getFullScanCount() {
+        return fullScans;
+    }
+
+    /**
+     * @return the share of the frame's blocks tested per frame, on
+     * average; 1 is a full resolution scan of every frame.
+     */
+    public float getScannedFraction() {
+        long perFrame = (long) gridWidth * gridHeight;
+        return frames == 0 || perFrame == 0 ? 0 : (float) scannedBlocks / (frames * perFrame);
+    }
+
+    /**
+     * @return the mean time spent in {@link #process}, in nanoseconds.
+     */
+    public long getAverageNanos() {
+        return frames == 0 ? 0 : processNanos / frames;
+    }
+
+}
@@ -15,7 +15,10 @@
  */
 package com.aircanvas;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -38,7 +41,51 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
 
     private static final String TAG = "MyGLRenderer";
     private static final float delta = 0.025f;
+    // pixels per unit of the captured stroke coordinates
+    private static final float X_SCALE = 1000;
+    private static final float Y_SCALE = 800;
+    // only touched on the GL thread
     private ArrayList<TriLine> triLines = new ArrayList<TriLine>();
+    private final StrokeStore mStrokes = new StrokeStore();
+    // records every stroke committed by the user, once a canvas is open
+    private StrokeJournal mJournal;
+    // strokes committed while the canvas was still loading, journaled once it opens
+    private final ArrayList<TriLine> mUnjournaled = new ArrayList<TriLine>();
+    // set by openCanvas until the next frame has uploaded the canvas
+    private boolean mOpened;
+    // strokes committed by the user that can be undone
+    private static final int DEFAULT_HISTORY_DEPTH = 100;
+    private final UndoHistory mHistory = new UndoHistory(mStrokes, DEFAULT_HISTORY_DEPTH);
+
+    // touch input from the UI thread, applied at the start of each frame
+    private final InputQueue mInput = new InputQueue(1024);
+    // marker input from the frame processing thread; a queue has one producer
+    private final InputQueue mTrackerInput = new InputQueue(256);
+    // each pointer source is filtered with its own noise: touch is precise, the marker jitters
+    private final InputHandler mInputHandler = new InputHandler(new PointerPredictor(5e6f, 1));
+    private final InputHandler mTrackerHandler = new InputHandler(new PointerPredictor(5e6f, 16));
+
+    private class InputHandler implements InputQueue.Handler {
+        final PointerPredictor predictor;
+
+        InputHandler(PointerPredictor predictor) {
+            this.predictor = predictor;
+        }
+
+        @Override
+        public void onCommand(int command, float x, float y, long timeNanos) {
+            switch (command) {
+                case InputQueue.PAN_LEFT: left(); break;
+                case InputQueue.PAN_RIGHT: right(); break;
+                case InputQueue.PAN_FORWARD: forward(); break;
+                case InputQueue.PAN_BACK: back(); break;
+                case InputQueue.DRAW: drawing(predictor, x, y, timeNanos); break;
+                case InputQueue.UP: action_up(); break;
+                case InputQueue.UNDO: undo(); break;
+                case InputQueue.REDO: redo(); break;
+            }
+        }
+    }
     
     private float xoff = 0;
     private float yoff = 0;
@@ -48,21 +95,76 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
     private float prevy = 0;
     
     private boolean isDrawing = false;
-    private ArrayList<Float> drawingList;
+    private final FloatList drawingList = new FloatList(3 * 1024);
+    private int drawingGeneration = 0;
+    // filters the pointer of the stroke being drawn and predicts where it will be when a frame is shown
+    private PointerPredictor mPredictor;
+    private static final long DEFAULT_PREDICTION_NANOS = 20000000L;
+    private volatile long mPredictionNanos = DEFAULT_PREDICTION_NANOS;
+    private volatile boolean mPredicting;
+    private final float[] mPredicted = new float[2];
+    private final float[] mTip = new float[3];
+    // removes points that stray less than 2 pixels from the committed stroke
+    private final StrokeSimplifier mSimplifier = new StrokeSimplifier(2.0f, X_SCALE, Y_SCALE);
+    // rounds off the simplified stroke, subdividing only where it curves
+    private final SplineSmoother mSmoother = new SplineSmoother(8, X_SCALE, Y_SCALE);
+    private final FloatList mSmoothed = new FloatList(3 * 1024);
+    private final StrokeTessellator mTessellator = new StrokeTessellator(
+            0.012f, StrokeTessellator.Join.ROUND, StrokeTessellator.Cap.ROUND);
+    // the stroke being drawn, tessellated as it will be committed
+    private final LiveStroke mLiveStroke = new LiveStroke(4096, mTessellator);
     
+    // the camera image behind the strokes, when the camera streams into a texture
+    private CameraBackground mBackground;
+    // reduces each camera frame on the GPU for the marker tracker
+    private final FrameDownsampler mDownsampler = new FrameDownsampler();
+
+    // renders the strokes offscreen for export, a tile per frame
+    private final CanvasExporter mExporter = new CanvasExporter();
+    private int mWidth;
+    private int mHeight;
+
     // mMVPMatrix is an abbreviation for "Model View Projection Matrix"
     private final float[] mMVPMatrix = new float[16];
     private final float[] mProjectionMatrix = new float[16];
     private final float[] mViewMatrix = new float[16];
-    private final float[] mRotationMatrix = new float[16];
 
-    private float mAngle;
+    // per-frame timings and counts, summarised in the log every STATS_LOG_FRAMES frames
+    private static final int STATS_LOG_FRAMES = 120;
+    private final FrameStats mStats = new FrameStats(STATS_LOG_FRAMES);
+    private final PerfHud mHud = new PerfHud(STATS_LOG_FRAMES);
+    private volatile boolean mHudEnabled = false;
+    private int mFramesSinceLog;
+    private volatile int mFramesDrawn;
+
+    // bytes copied into GL buffer objects during the current and the last frame
+    private static int sUploadBytes;
+    private int mFrameUploadBytes;
+
+    // linked programs keyed by their vertex and fragment source
+    private static final HashMap<String, ShaderProgram> sPrograms = new HashMap<String, ShaderProgram>();
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        // a new context means every previously linked program is gone
+        sPrograms.clear();
+        mStrokes.onSurfaceCreated();
+        mLiveStroke.onSurfaceCreated();
+        mHud.onSurfaceCreated();
+        mExporter.onSurfaceCreated();
+        if (mBackground != null) {
+            mBackground.onSurfaceCreated();
+            mDownsampler.onSurfaceCreated();
+        }
 
         // Set the background frame color
         GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+    }
+
+    /**
+     * Adds the demo circle, which only seeds a fresh canvas.
+     */
+    private void addDemoCircle() {
         int numPts = 19;
         float radius = .4f;
         float[] circle = new float[3*numPts];
@@ -74,16 +176,25 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
         	a++;
         }
         
-        triLines.add(new TriLine(circle, numPts));
-        Log.i(TAG, "" + triLines.size());
+        addTriLine(new TriLine(circle, numPts, mTessellator));
     }
 
     @Override
     public void onDrawFrame(GL10 unused) {
-        float[] scratch = new float[16];
+        mStats.beginFrame();
+
+        // apply queued input
+        mInput.drain(mInputHandler);
+        mTrackerInput.drain(mTrackerHandler);
 
         // Draw background color
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        if (mBackground != null) {
+            boolean newFrame = mBackground.latch();
+            mBackground.draw();
+            mDownsampler.step(mBackground.getTexture(), mBackground.getTransformMatrix(),
+                    newFrame, mWidth, mHeight);
+        }
 
         // Set the camera position (View matrix)
         Matrix.setLookAtM(mViewMatrix, 0, 0, 0, -3, xoff, yoff, zoff, 0f, 1.0f, 0.0f);
@@ -91,25 +202,56 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
         // Calculate the projection and view transformation
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mViewMatrix, 0);
 
-        for (int i = 0; i < triLines.size(); i++) {
-        	triLines.get(i).draw(mMVPMatrix);
-        	Log.i(TAG, "size: " + triLines.size() + ", i: " + i);
+        // finished strokes in view, merged into as few draw calls as possible
+        long strokesStart = System.nanoTime();
+        mStrokes.draw(mMVPMatrix);
+        if (mOpened) {
+            // the frame that uploads a canvas just opened
+            mOpened = false;
+            Log.i(TAG, "uploaded opened canvas, " + sUploadBytes + " bytes in "
+                    + (System.nanoTime() - strokesStart) / 1000 + " us");
         }
-        //mSquare.draw(mMVPMatrix);
+        int drawCalls = mStrokes.getDrawCallCount();
+        int vertices = mStrokes.getDrawnVertexCount();
 
-        // Create a rotation for the triangle
+        // the stroke under the finger is streamed in as it is captured
+        boolean predicting = false;
+        if (isDrawing) {
+            // the tip is redrawn to the predicted position each frame, until real samples catch up with it
+            float[] tip = null;
+            long lead = mPredictionNanos;
+            long shown = System.nanoTime() + lead;
+            if (lead > 0 && mPredictor.predict(shown, mPredicted)) {
+                mTip[0] = mPredicted[0]/X_SCALE;
+                mTip[1] = mPredicted[1]/Y_SCALE;
+                mTip[2] = 1.0f;
+                tip = mTip;
+                // once the pointer has stopped this frame drew the settled tip and no more are needed
+                predicting = mPredictor.isExtrapolating(shown);
+            }
+            int live = mLiveStroke.draw(mMVPMatrix, drawingList, drawingGeneration, tip);
+            if (live > 0) {
+                drawCalls++;
+                vertices += live;
+            }
+        }
 
-        // Use the following code to generate constant rotation.
-        // Leave this code out when using TouchEvents.
-        // long time = SystemClock.uptimeMillis() % 4000L;
-        // float angle = 0.090f * ((int) time);
+        mPredicting = predicting;
 
-        Matrix.setRotateM(mRotationMatrix, 0, mAngle, 0, 0, 1.0f);
+        if (mHudEnabled) {
+            mHud.draw(mStats);
+        }
 
-        // Combine the rotation matrix with the projection and camera view
-        // Note that the mMVPMatrix factor *must be first* in order
-        // for the matrix multiplication product to be correct.
-        Matrix.multiplyMM(scratch, 0, mMVPMatrix, 0, mRotationMatrix, 0);
+        mExporter.step(mStrokes, mViewMatrix, mWidth, mHeight);
+
+        mFrameUploadBytes = sUploadBytes;
+        sUploadBytes = 0;
+        mStats.endFrame(drawCalls, vertices, mFrameUploadBytes);
+        if (++mFramesSinceLog == STATS_LOG_FRAMES) {
+            mFramesSinceLog = 0;
+            Log.i(TAG, mStats.summary());
+        }
+        mFramesDrawn++;
     }
 
     @Override
@@ -117,6 +259,8 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
         // Adjust the viewport based on geometry changes,
         // such as screen rotation
         GLES20.glViewport(0, 0, width, height);
+        mWidth = width;
+        mHeight = height;
 
         float ratio = (float) width / height;
 
@@ -146,9 +290,144 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
         GLES20.glShaderSource(shader, shaderCode);
         GLES20.glCompileShader(shader);
 
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            Log.e(TAG, "Could not compile shader " + type + ": " + GLES20.glGetShaderInfoLog(shader));
+        }
+
         return shader;
     }
 
+    /**
+     * Returns the shared program for a vertex/fragment pair, compiling and
+     * linking it only the first time the pair is requested in this context.
+     *
+     * @param vertexShaderCode - Source of the vertex shader.
+     * @param fragmentShaderCode - Source of the fragment shader.
+     * @param attributes - Attribute names whose locations should be cached.
+     * @param uniforms - Uniform names whose locations should be cached.
+     * @return - The linked program with its cached locations.
+     */
+    public static ShaderProgram getProgram(String vertexShaderCode, String fragmentShaderCode,
+            String[] attributes, String[] uniforms) {
+        String key = vertexShaderCode + '\0' + fragmentShaderCode;
+        ShaderProgram program = sPrograms.get(key);
+        if (program == null) {
+            program = new ShaderProgram(vertexShaderCode, fragmentShaderCode, attributes, uniforms);
+            sPrograms.put(key, program);
+        } else {
+            program.resolve(attributes, uniforms);
+        }
+        return program;
+    }
+
+    /**
+     * @return the frame time, draw call, vertex and upload measurements of
+     * recent frames. Updated on the GL thread.
+     */
+    public FrameStats getFrameStats() {
+        return mStats;
+    }
+
+    /**
+     * @return the number of frames completed so far. Safe to read from any thread.
+     */
+    public int getFramesDrawn() {
+        return mFramesDrawn;
+    }
+
+    /**
+     * Starts writing the finished strokes, as the camera sees them now, to a
+     * PNG file of the given size. The work is spread over the following
+     * frames, so keep rendering while {@link #isExporting} is true. May be
+     * called from any thread.
+     *
+     * @return - false if an export is already running.
+     */
+    public boolean export(File file, int width, int height, CanvasExporter.Listener listener) {
+        return mExporter.request(file, width, height, listener);
+    }
+
+    /**
+     * Frees what outlives the GL context, such as the export encoder's
+     * thread, when the renderer is done with for good. May be called from
+     * any thread.
+     */
+    public void release() {
+        mExporter.release();
+    }
+
+    /**
+     * @return whether an export still needs frames. Safe to call from any thread.
+     */
+    public boolean isExporting() {
+        return mExporter.isBusy();
+    }
+
+    /**
+     * Draws the camera image behind the strokes, streamed into a texture
+     * that is handed to listener whenever a GL context is created. Must be
+     * called before the renderer is attached to its view. Needs API 15.
+     */
+    public void setCameraBackground(CameraBackground background) {
+        mBackground = background;
+    }
+
+    /**
+     * @return the stage that hands reduced camera frames to the tracker;
+     * it only runs with a camera background.
+     */
+    public FrameDownsampler getFrameDownsampler() {
+        return mDownsampler;
+    }
+
+    /**
+     * Sets how far ahead the tip of the stroke being drawn is predicted,
+     * roughly the time from the start of a frame until it is on the screen.
+     * 0 draws the tip at the last filtered sample. May be called from any
+     * thread.
+     */
+    public void setPredictionLead(long nanos) {
+        mPredictionNanos = Math.max(0, nanos);
+    }
+
+    /**
+     * @return whether the last frame drew the tip extrapolated ahead of the
+     * last sample, which needs a frame on every vsync to stay current. Goes
+     * false within the predictor's horizon of the pointer stopping, with a
+     * frame that draws the tip where it settled. Safe to call from any
+     * thread.
+     */
+    public boolean isPredicting() {
+        return mPredicting;
+    }
+
+    /**
+     * Shows or hides the frame time graph. May be called from any thread.
+     */
+    public void setHudEnabled(boolean enabled) {
+        mHudEnabled = enabled;
+    }
+
+    /**
+     * Records bytes copied to the GPU with glBufferData or glBufferSubData so
+     * the per-frame upload volume can be checked. Must be called on the GL thread.
+     *
+     * @param bytes - Number of bytes handed to the driver.
+     */
+    public static void countUpload(int bytes) {
+        sUploadBytes += bytes;
+    }
+
+    /**
+     * @return the number of bytes uploaded to GL buffer objects during the
+     * last drawn frame. Zero once nothing new has been drawn.
+     */
+    public int getFrameUploadBytes() {
+        return mFrameUploadBytes;
+    }
+
     /**
     * Utility method for debugging OpenGL calls. Provide the name of the call
     * just after making it:
@@ -169,6 +448,80 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
         }
     }
 
+    /**
+     * Queues an input command to be applied on the GL thread at the start of
+     * the next frame. This is the only renderer method the UI thread may call
+     * while rendering; the methods below run on the GL thread.
+     *
+     * @param command - One of the {@link InputQueue} command constants.
+     * @return - false if the queue was full and the command was dropped.
+     */
+    public boolean post(int command, float x, float y) {
+        return mInput.offer(command, x, y);
+    }
+
+    /**
+     * Like {@link #post}, for input that happened at timeNanos on the
+     * System.nanoTime clock rather than now.
+     */
+    public boolean post(int command, float x, float y, long timeNanos) {
+        return mInput.offer(command, x, y, timeNanos);
+    }
+
+    /**
+     * Like {@link #post}, for pen input from the frame processing thread,
+     * which must be the only thread calling this.
+     */
+    public boolean postTracked(int command, float x, float y, long timeNanos) {
+        return mTrackerInput.offer(command, x, y, timeNanos);
+    }
+
+    /**
+     * Files recovered strokes into a new store for {@link #openCanvas}.
+     * Makes no GL calls and touches nothing the GL thread uses, so the
+     * interleaving of a large canvas happens on the loading thread. May be
+     * called from any thread.
+     */
+    public StrokeStore buildStore(List<TriLine> lines) {
+        StrokeStore store = new StrokeStore();
+        store.setIntIndices(mStrokes.isIntIndices());
+        for (int i = 0; i < lines.size(); i++) {
+            store.add(lines.get(i));
+        }
+        return store;
+    }
+
+    /**
+     * Swaps in a recovered canvas, or seeds the demo circle if it is empty,
+     * and records strokes committed from now on to its journal. Strokes the
+     * user committed while it loaded are kept on top of it and journaled
+     * first. Must be called on the GL thread.
+     *
+     * @param store - The lines filed by {@link #buildStore}, uploaded with
+     * one call per arena on the next frame.
+     */
+    public void openCanvas(List<TriLine> lines, StrokeStore store, StrokeJournal journal) {
+        if (!lines.isEmpty()) {
+            triLines.clear();
+            mHistory.clear();
+            mStrokes.replaceWith(store);
+            mOpened = true;
+            triLines.addAll(lines);
+            for (int i = 0; i < mUnjournaled.size(); i++) {
+                TriLine line = mUnjournaled.get(i);
+                triLines.add(line);
+                mHistory.add(line);
+            }
+        } else {
+            addDemoCircle();
+        }
+        mJournal = journal;
+        for (int i = 0; i < mUnjournaled.size(); i++) {
+            journal.append(mUnjournaled.get(i));
+        }
+        mUnjournaled.clear();
+    }
+
     public void left() {
     	xoff += delta;
     }
@@ -185,24 +538,49 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
     	yoff += delta; 
     }
     
-    public void drawing(float x, float y) {
+    /**
+     * Sets how far, in pixels, a committed stroke may deviate from the
+     * captured points when it is simplified. 0 keeps every point.
+     */
+    public void setSimplifyTolerance(float pixels) {
+        mSimplifier.setTolerance(pixels);
+    }
+
+    /**
+     * @return the tessellator that sets the width, joins and caps of
+     * strokes committed from now on.
+     */
+    public StrokeTessellator getTessellator() {
+        return mTessellator;
+    }
+
+    /**
+     * Adds a pointer sample to the stroke being drawn, starting one if
+     * needed. The stroke is built from the filtered positions.
+     */
+    private void drawing(PointerPredictor predictor, float sampleX, float sampleY, long timeNanos) {
+    	if (!isDrawing || predictor != mPredictor) {
+    		// a new stroke, or the other pointer source taking over this one
+    		mPredictor = predictor;
+    		predictor.reset();
+    	}
+    	predictor.update(sampleX, sampleY, timeNanos);
+    	float x = predictor.getX();
+    	float y = predictor.getY();
     	if (!isDrawing) {
     		isDrawing = true;
     		prevx = x;
     		prevy = y;
-    		drawingList = new ArrayList<Float>();
-    		drawingList.add(x/1000);
-    		drawingList.add(y/800);
-    		drawingList.add(1.0f);
+    		// reuse the capture buffer so a new stroke allocates nothing
+    		drawingList.clear();
+    		drawingGeneration++;
+    		drawingList.add(x/X_SCALE, y/Y_SCALE, 1.0f);
     	}
     	else {
     		if (Math.abs(x - prevx)+ Math.abs(y - prevy) > 25) {
     			prevx = x;
         		prevy = y;
-        		Log.i(TAG, "X: " + x + ",Y: " + y);
-        		drawingList.add(x/1000);
-        		drawingList.add(y/800);
-        		drawingList.add(1.0f);
+        		drawingList.add(x/X_SCALE, y/Y_SCALE, 1.0f);
     		}
     	}
     }
@@ -210,14 +588,74 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
     public void action_up() {
     	if (isDrawing) {
     		isDrawing = false;
-    		float[] lst = new float[drawingList.size()];
-    		int i = 0;
-    		for (float f : drawingList) {
-    			lst[i++] = f;
+    		mPredicting = false;
+    		// end where the pointer was last seen, not at the last sample far enough to keep
+    		if (prevx != mPredictor.getX() || prevy != mPredictor.getY()) {
+    			drawingList.add(mPredictor.getX()/X_SCALE, mPredictor.getY()/Y_SCALE, 1.0f);
+    		}
+    		float[] lst = mSimplifier.simplify(drawingList.array(), drawingList.size()/3);
+    		if (Log.isLoggable(TAG, Log.DEBUG)) {
+    			Log.d(TAG, "simplified stroke from " + mSimplifier.getLastInputCount()
+    					+ " to " + mSimplifier.getLastOutputCount() + " vertices, "
+    					+ (int) (100 * mSimplifier.getTotalReduction()) + "% removed overall");
+    		}
+    		mSmoothed.clear();
+    		int count = mSmoother.smooth(lst, lst.length/3, mSmoothed);
+    		TriLine line = new TriLine(mSmoothed.array(), count, mTessellator);
+    		triLines.add(line);
+    		mHistory.add(line);
+    		if (mJournal != null) {
+    			mJournal.append(line);
+    		} else {
+    			mUnjournaled.add(line);
     		}
-    		
-    		triLines.add(new TriLine(lst, lst.length/3));
     	}
     }
+
+    /**
+     * Hides the most recently committed stroke. Its geometry stays on the
+     * GPU so {@link #redo} can show it again.
+     */
+    public void undo() {
+        if (mHistory.undo() == null) {
+            return;
+        }
+        // strokes are undone newest first, so this is always the last one
+        triLines.remove(triLines.size() - 1);
+        if (mJournal != null) {
+            mJournal.removeLast();
+        } else {
+            mUnjournaled.remove(mUnjournaled.size() - 1);
+        }
+    }
+
+    public void redo() {
+        TriLine line = mHistory.redo();
+        if (line == null) {
+            return;
+        }
+        triLines.add(line);
+        if (mJournal != null) {
+            mJournal.append(line);
+        } else {
+            mUnjournaled.add(line);
+        }
+    }
+
+    /**
+     * Sets how many strokes can be undone; older ones become permanent.
+     * May be called from any thread.
+     */
+    public void setHistoryDepth(int depth) {
+        mHistory.setDepth(depth);
+    }
+
+    /**
+     * Adds a stroke that cannot be undone, such as one loaded from a file.
+     */
+    private void addTriLine(TriLine line) {
+        triLines.add(line);
+        mStrokes.add(line);
+    }
     
 }
\ No newline at end of file
@@ -15,9 +15,15 @@
  */
 package com.aircanvas;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.PixelFormat;
+import android.graphics.SurfaceTexture;
 import android.opengl.GLSurfaceView;
 import android.util.Log;
 import android.view.MotionEvent;
@@ -29,7 +35,20 @@ import android.view.MotionEvent;
  */
 public class MyGLSurfaceView extends GLSurfaceView {
 
+    private static final String TAG = "MyGLSurfaceView";
+
     private final MyGLRenderer mRenderer;
+    private final RenderScheduler mScheduler;
+    private final CameraBackground mBackground;
+    private CameraTextureListener mTextureListener;
+    private final AtomicBoolean mInvalidatePosted = new AtomicBoolean();
+    private final Runnable mInvalidate = new Runnable() {
+        @Override
+        public void run() {
+            mInvalidatePosted.set(false);
+            mScheduler.invalidate();
+        }
+    };
     
     private boolean down;
     
@@ -37,6 +56,16 @@ public class MyGLSurfaceView extends GLSurfaceView {
     private float downy;
 
     public MyGLSurfaceView(Context context) {
+        this(context, false);
+    }
+
+    /**
+     * @param cameraBackground - Draw the camera image behind the strokes
+     * from a texture, see {@link #setOnCameraTextureListener}, instead of
+     * floating a translucent surface over a separate camera preview. Needs
+     * API 15.
+     */
+    public MyGLSurfaceView(Context context, boolean cameraBackground) {
         super(context);
 
         // Create an OpenGL ES 2.0 context.
@@ -45,17 +74,210 @@ public class MyGLSurfaceView extends GLSurfaceView {
         // Set the Renderer for drawing on the GLSurfaceView
         setEGLConfigChooser(8,8,8,8,16,0);
         mRenderer = new MyGLRenderer();
+        if (cameraBackground) {
+            mBackground = new CameraBackground(new CameraBackground.Listener() {
+                @Override
+                public void onTextureCreated(final SurfaceTexture texture) {
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mTextureListener != null) {
+                                mTextureListener.onCameraTexture(texture);
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onFrameAvailable() {
+                    invalidateFromAnyThread();
+                }
+            });
+            mRenderer.setCameraBackground(mBackground);
+        } else {
+            mBackground = null;
+        }
         setRenderer(mRenderer);
 
-        getHolder().setFormat(PixelFormat.TRANSLUCENT);
-        
-        setZOrderOnTop(true);
+        if (!cameraBackground) {
+            // the strokes float over the camera preview's own surface
+            getHolder().setFormat(PixelFormat.TRANSLUCENT);
+            setZOrderOnTop(true);
+        }
 
-        // Render the view only when there is a change in the drawing data
+        // Render the view only when there is a change in the drawing data,
+        // at most once per vsync
         setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+        mScheduler = new RenderScheduler(this, mRenderer);
         setWillNotDraw(false);
     }
 
+    public RenderScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Receives the texture the camera should stream into when the camera is
+     * drawn as the background.
+     */
+    public interface CameraTextureListener {
+        /**
+         * Called on the UI thread each time the GL context, and with it the
+         * texture, is recreated.
+         */
+        void onCameraTexture(SurfaceTexture texture);
+    }
+
+    /**
+     * UI thread only.
+     */
+    public void setOnCameraTextureListener(CameraTextureListener listener) {
+        mTextureListener = listener;
+    }
+
+    /**
+     * @return the GPU stage that reduces camera frames for the tracker, or
+     * null without a camera background.
+     */
+    public FrameDownsampler getFrameDownsampler() {
+        return mBackground != null ? mRenderer.getFrameDownsampler() : null;
+    }
+
+    /**
+     * Mirrors the camera background, for a front facing camera. Does
+     * nothing without a camera background.
+     */
+    public void setCameraMirrored(boolean mirrored) {
+        if (mBackground != null) {
+            mBackground.setMirrored(mirrored);
+        }
+    }
+
+    /**
+     * Recovers the canvas from the journal and files it into stroke arenas
+     * on a background thread, then swaps it in for the current strokes on
+     * the GL thread and starts journaling new strokes. Strokes drawn while
+     * it loads are kept and journaled, see {@link MyGLRenderer#openCanvas}.
+     */
+    public void openCanvas(final StrokeJournal journal) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                final List<TriLine> lines;
+                try {
+                    lines = journal.recover();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not open canvas", e);
+                    return;
+                }
+                long read = System.nanoTime();
+                final StrokeStore store = mRenderer.buildStore(lines);
+                Log.i(TAG, "read " + lines.size() + " strokes in "
+                        + (read - start) / 1000000 + " ms, filed in "
+                        + (System.nanoTime() - read) / 1000000 + " ms");
+
+                queueEvent(new Runnable() {
+                    @Override
+                    public void run() {
+                        long swap = System.nanoTime();
+                        mRenderer.openCanvas(lines, store, journal);
+                        Log.i(TAG, "swapped in canvas in "
+                                + (System.nanoTime() - swap) / 1000 + " us");
+                    }
+                });
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mScheduler.invalidate();
+                    }
+                });
+            }
+        }, "CanvasLoad").start();
+    }
+
+    /**
+     * Creates a listener that draws with a tracked marker the same way a
+     * finger on the screen does. Frame pixels are stretched over the view,
+     * mirrored for a front facing camera. The listener must always be called
+     * on the same thread, normally the frame processing thread.
+     */
+    public MarkerTracker.Listener createMarkerListener(final int frameWidth, final int frameHeight,
+            final boolean mirror) {
+        return new MarkerTracker.Listener() {
+            @Override
+            public void onMarkerMoved(float x, float y) {
+                float vx = x * getWidth() / frameWidth;
+                float vy = y * getHeight() / frameHeight;
+                if (mirror) {
+                    vx = getWidth() - vx;
+                }
+                mRenderer.postTracked(InputQueue.DRAW, vx, vy, System.nanoTime());
+                invalidateFromAnyThread();
+            }
+
+            @Override
+            public void onMarkerUp() {
+                mRenderer.postTracked(InputQueue.UP, 0, 0, System.nanoTime());
+                invalidateFromAnyThread();
+            }
+        };
+    }
+
+    /**
+     * Asks the scheduler for a frame from a thread other than the UI thread.
+     * Requests made while one is already on its way to the UI thread are
+     * folded into it.
+     */
+    private void invalidateFromAnyThread() {
+        if (mInvalidatePosted.compareAndSet(false, true)) {
+            post(mInvalidate);
+        }
+    }
+
+    /**
+     * Undoes the last stroke on the GL thread. UI thread only.
+     */
+    public void undo() {
+        mRenderer.post(InputQueue.UNDO, 0, 0);
+        mScheduler.invalidate();
+    }
+
+    /**
+     * Redoes the last undone stroke on the GL thread. UI thread only.
+     */
+    public void redo() {
+        mRenderer.post(InputQueue.REDO, 0, 0);
+        mScheduler.invalidate();
+    }
+
+    /**
+     * Exports the finished strokes, as the camera sees them now, to a PNG
+     * file of width x height pixels without interrupting drawing.
+     *
+     * @return - false if an export is already running.
+     */
+    public boolean exportCanvas(File file, int width, int height, CanvasExporter.Listener listener) {
+        if (!mRenderer.export(file, width, height, listener)) {
+            return false;
+        }
+        mScheduler.invalidate();
+        return true;
+    }
+
+    /**
+     * Releases the renderer's threads, for when the view is destroyed.
+     */
+    public void release() {
+        mRenderer.release();
+    }
+
+    @Override
+    public void onPause() {
+        mScheduler.cancel();
+        super.onPause();
+    }
+
     private final float TOUCH_SCALE_FACTOR = 180.0f / 320;
     private float mPreviousX;
     private float mPreviousY;
@@ -88,8 +310,10 @@ public class MyGLSurfaceView extends GLSurfaceView {
             	break;
             case MotionEvent.ACTION_UP:
             	down = false;
-            	mRenderer.action_up();
-            	requestRender();
+            	// the renderer applies commands on the GL thread, never here
+            	mRenderer.post(InputQueue.UP, x, y);
+            	mScheduler.setPanMask(0);
+            	mScheduler.invalidate();
             	break;
             case MotionEvent.ACTION_MOVE:
                 float dx = x - mPreviousX;
@@ -99,24 +323,32 @@ public class MyGLSurfaceView extends GLSurfaceView {
         
         if (down) {
             if (downx > threshx && downx < maxx - threshx && downy > threshy & downy < maxy + threshy) {
-//            	mRenderer.drawing(x,y);
-            	
+            	// event times are uptimeMillis, the same monotonic clock as System.nanoTime;
+            	// the batched samples between moves give the pointer filter the real motion
+            	for (int i = 0; i < e.getHistorySize(); i++) {
+            		mRenderer.post(InputQueue.DRAW, e.getHistoricalX(i), e.getHistoricalY(i),
+            				e.getHistoricalEventTime(i) * 1000000L);
+            	}
+            	mRenderer.post(InputQueue.DRAW, x, y, e.getEventTime() * 1000000L);
+            	mScheduler.invalidate();
             }
             else {
+            // the scheduler moves the camera once per vsync until the finger lifts
+            int pan = 0;
             if (downx < threshx) {
-            	mRenderer.left();
+            	pan |= 1 << InputQueue.PAN_LEFT;
             }
             if (downx > maxx - threshx) {
-            	mRenderer.right();
+            	pan |= 1 << InputQueue.PAN_RIGHT;
             }
             if (downy < threshy) {
-            	mRenderer.back();
+            	pan |= 1 << InputQueue.PAN_BACK;
             }
             if (downy > maxy - threshy) {
-            	mRenderer.forward();
+            	pan |= 1 << InputQueue.PAN_FORWARD;
             }
             
-            requestRender();
+            mScheduler.setPanMask(pan);
             }
         }
 
@@ -0,0 +1,109 @@
+package com.aircanvas;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import android.opengl.GLES20;
+
+/**
+ * Optional overlay that graphs recent CPU frame times along the bottom of
+ * the screen, one bar per frame, with a line marking the 60 fps budget.
+ * Drawn in normalized device coordinates on top of the scene.
+ */
+public class PerfHud {
+
+    private static final String vertexShaderCode =
+            "uniform mat4 uMVPMatrix;" +
+            "attribute vec4 vPosition;" +
+            "void main() {" +
+            "  gl_Position = uMVPMatrix * vPosition;" +
+            "}";
+
+    private static final String fragmentShaderCode =
+            "precision mediump float;" +
+            "uniform vec4 vColor;" +
+            "void main() {" +
+            "  gl_FragColor = vColor;" +
+            "}";
+
+    static final int COORDS_PER_VERTEX = 2;
+    private static final int vertexStride = COORDS_PER_VERTEX * 4; // 4 bytes per float
+
+    private static final float BUDGET_NS = 16666667f;
+    // the graph is this tall for a frame that takes twice the budget
+    private static final float HEIGHT = 0.4f;
+
+    private final float[] identity = {
+            1, 0, 0, 0,
+            0, 1, 0, 0,
+            0, 0, 1, 0,
+            0, 0, 0, 1 };
+    private final float[] barColor = { 0.2f, 0.9f, 0.3f, 0.8f };
+    private final float[] budgetColor = { 0.9f, 0.2f, 0.2f, 0.8f };
+
+    private final FloatBuffer vertexBuffer;
+    private final int bars;
+
+    private int mProgram;
+    private int mPositionHandle;
+    private int mColorHandle;
+    private int mMVPMatrixHandle;
+
+    /**
+     * @param bars - Number of frames shown; extra vertices hold the budget line.
+     */
+    public PerfHud(int bars) {
+        this.bars = bars;
+        ByteBuffer bb = ByteBuffer.allocateDirect((bars + 1) * 2 * vertexStride);
+        bb.order(ByteOrder.nativeOrder());
+        vertexBuffer = bb.asFloatBuffer();
+    }
+
+    /**
+     * Looks up the shared program. Must be called on the GL thread.
+     */
+    public void onSurfaceCreated() {
+        ShaderProgram program = MyGLRenderer.getProgram(
+                vertexShaderCode, fragmentShaderCode,
+                new String[] { "vPosition" },
+                new String[] { "vColor", "uMVPMatrix" });
+        mProgram = program.getProgram();
+        mPositionHandle = program.getAttribLocation("vPosition");
+        mColorHandle = program.getUniformLocation("vColor");
+        mMVPMatrixHandle = program.getUniformLocation("uMVPMatrix");
+    }
+
+    public void draw(FrameStats stats) {
+        int shown = Math.min(bars, stats.getSampleCount());
+        float step = 2.0f / bars;
+
+        vertexBuffer.clear();
+        for (int i = 0; i < shown; i++) {
+            // newest frame on the right
+            float x = 1 - step * (i + 0.5f);
+            float h = Math.min(stats.get(FrameStats.FRAME_TIME_NS, i) / (2 * BUDGET_NS), 1) * HEIGHT;
+            vertexBuffer.put(x).put(-1);
+            vertexBuffer.put(x).put(-1 + h);
+        }
+        vertexBuffer.put(-1).put(-1 + HEIGHT / 2);
+        vertexBuffer.put(1).put(-1 + HEIGHT / 2);
+        vertexBuffer.position(0);
+
+        GLES20.glUseProgram(mProgram);
+        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        GLES20.glVertexAttribPointer(
+                mPositionHandle, COORDS_PER_VERTEX,
+                GLES20.GL_FLOAT, false,
+                vertexStride, vertexBuffer);
+        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, identity, 0);
+
+        GLES20.glUniform4fv(mColorHandle, 1, barColor, 0);
+        GLES20.glDrawArrays(GLES20.GL_LINES, 0, shown * 2);
+        GLES20.glUniform4fv(mColorHandle, 1, budgetColor, 0);
+        GLES20.glDrawArrays(GLES20.GL_LINES, shown * 2, 2);
+
+        GLES20.glDisableVertexAttribArray(mPositionHandle);
+    }
+
+}
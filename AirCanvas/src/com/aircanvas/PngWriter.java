@@ -0,0 +1,132 @@
+package com.aircanvas;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streams an RGBA image to PNG a band of rows at a time, so an image far
+ * larger than memory allows for a Bitmap can be written as its rows become
+ * available. Rows use the Sub filter, which is cheap to apply and packs the
+ * flat colors of a drawing well.
+ */
+public class PngWriter {
+
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+    private static final int FILTER_SUB = 1;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final CRC32 crc = new CRC32();
+    private final byte[] filtered;
+    private final byte[] compressed = new byte[64 * 1024];
+    private int compressedSize;
+    private int rowsWritten;
+
+    public PngWriter(OutputStream out, int width, int height) throws IOException {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        filtered = new byte[1 + width * BYTES_PER_PIXEL];
+
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;  // bits per channel
+        header[9] = 6;  // color type RGBA
+        header[10] = 0; // deflate
+        header[11] = 0; // adaptive filtering
+        header[12] = 0; // not interlaced
+        writeChunk("IHDR", header, header.length);
+    }
+
+    /**
+     * Appends rows to the image, top to bottom.
+     *
+     * @param rgba - Pixels, 4 bytes each, rows of width pixels.
+     * @param offset - Index of the first byte of the first row.
+     * @param rowStride - Bytes from one row to the next; negative for
+     * bottom-up data such as glReadPixels produces.
+     * @param rows - Number of rows to append.
+     */
+    public void writeRows(byte[] rgba, int offset, int rowStride, int rows) throws IOException {
+        if (rowsWritten + rows > height) {
+            throw new IllegalStateException("image has only " + height + " rows");
+        }
+        int rowBytes = width * BYTES_PER_PIXEL;
+        for (int r = 0; r < rows; r++) {
+            int row = offset + r * rowStride;
+            filtered[0] = FILTER_SUB;
+            for (int i = 0; i < BYTES_PER_PIXEL; i++) {
+                filtered[1 + i] = rgba[row + i];
+            }
+            for (int i = BYTES_PER_PIXEL; i < rowBytes; i++) {
+                filtered[1 + i] = (byte) (rgba[row + i] - rgba[row + i - BYTES_PER_PIXEL]);
+            }
+            deflater.setInput(filtered, 0, filtered.length);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+        rowsWritten += rows;
+    }
+
+    /**
+     * Writes the last compressed data and the end of the image. Does not
+     * close the stream.
+     */
+    public void finish() throws IOException {
+        if (rowsWritten != height) {
+            throw new IllegalStateException(rowsWritten + " of " + height + " rows written");
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate();
+        }
+        if (compressedSize > 0) {
+            writeChunk("IDAT", compressed, compressedSize);
+            compressedSize = 0;
+        }
+        deflater.end();
+        writeChunk("IEND", compressed, 0);
+        out.flush();
+    }
+
+    private void deflate() throws IOException {
+        compressedSize += deflater.deflate(compressed, compressedSize, compressed.length - compressedSize);
+        if (compressedSize == compressed.length) {
+            writeChunk("IDAT", compressed, compressedSize);
+            compressedSize = 0;
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] word = new byte[4];
+        putInt(word, 0, length);
+        out.write(word);
+
+        byte[] typeBytes = { (byte) type.charAt(0), (byte) type.charAt(1),
+                (byte) type.charAt(2), (byte) type.charAt(3) };
+        crc.reset();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+
+        putInt(word, 0, (int) crc.getValue());
+        out.write(word);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.aircanvas;
+
+/**
+ * A constant velocity Kalman filter on a stream of pointer positions. Each
+ * sample updates an estimate of the position and velocity, which smooths
+ * jitter out of noisy sources such as a tracked marker, and the estimate can
+ * be extrapolated to when a frame will be shown, so the drawn tip keeps up
+ * with the pointer instead of trailing it by the input and display latency.
+ *
+ * The x and y axes are filtered independently with the same noise, so they
+ * share one covariance matrix. Positions are in pixels and times in
+ * nanoseconds on the System.nanoTime clock.
+ *
+ * Nothing is allocated per sample.
+ */
+public class PointerPredictor {
+
+    // how far ahead of the last sample a position is ever predicted
+    private static final long MAX_LEAD_NANOS = 50000000L;
+    // past that the prediction eases back to the last sample over this long
+    private static final long FADE_NANOS = 50000000L;
+    // uncertainty of the velocity of a newly touched pointer, in (pixels/s)^2
+    private static final float INITIAL_VELOCITY_VARIANCE = 1e6f;
+
+    private final float accelNoise;
+    private final float measurementNoise;
+
+    private boolean started;
+    private long time;
+    private float x;
+    private float y;
+    private float vx;
+    private float vy;
+    // covariance of position and velocity, the same for both axes
+    private float p00;
+    private float p01;
+    private float p11;
+
+    /**
+     * @param accelNoise - Spectral density of the pointer's random
+     * acceleration, in pixels^2/s^3. Larger follows sudden turns sooner.
+     * @param measurementNoise - Variance of a sample's position, in pixels^2.
+     * Larger smooths more.
+     */
+    public PointerPredictor(float accelNoise, float measurementNoise) {
+        this.accelNoise = accelNoise;
+        this.measurementNoise = measurementNoise;
+    }
+
+    /**
+     * Forgets the pointer, for when a new stroke starts.
+     */
+    public void reset() {
+        started = false;
+    }
+
+    /**
+     * Adds a sample taken at timeNanos. Samples must arrive in time order.
+     */
+    public void update(float sampleX, float sampleY, long timeNanos) {
+        if (!started) {
+            started = true;
+            time = timeNanos;
+            x = sampleX;
+            y = sampleY;
+            vx = 0;
+            vy = 0;
+            p00 = measurementNoise;
+            p01 = 0;
+            p11 = INITIAL_VELOCITY_VARIANCE;
+            return;
+        }
+
+        // predict: move by the velocity and let the uncertainty grow
+        float dt = Math.max(0, timeNanos - time) * 1e-9f;
+        time = Math.max(time, timeNanos);
+        x += vx * dt;
+        y += vy * dt;
+        float q = accelNoise;
+        float n00 = p00 + dt * (2 * p01 + dt * p11) + q * dt * dt * dt / 3;
+        float n01 = p01 + dt * p11 + q * dt * dt / 2;
+        float n11 = p11 + q * dt;
+
+        // correct: blend in the measured position
+        float k0 = n00 / (n00 + measurementNoise);
+        float k1 = n01 / (n00 + measurementNoise);
+        float ex = sampleX - x;
+        float ey = sampleY - y;
+        x += k0 * ex;
+        y += k0 * ey;
+        vx += k1 * ex;
+        vy += k1 * ey;
+        p00 = (1 - k0) * n00;
+        p01 = (1 - k0) * n01;
+        p11 = n11 - k1 * n01;
+    }
+
+    /**
+     * Extrapolates the filtered position to timeNanos, at most a short
+     * lead past the last sample. Once the last sample is older than that the
+     * pointer has most likely stopped, so the lead shrinks back to zero over
+     * another 50 ms and then the filtered position is returned unchanged;
+     * the predicted tip glides back rather than jumping.
+     *
+     * @param out - Receives x, y.
+     * @return - false if there has been no sample since the last reset.
+     */
+    public boolean predict(long timeNanos, float[] out) {
+        if (!started) {
+            return false;
+        }
+        float dt = horizon(timeNanos - time) * 1e-9f;
+        out[0] = x + vx * dt;
+        out[1] = y + vy * dt;
+        return true;
+    }
+
+    /**
+     * @return whether {@link #predict} at timeNanos moves the position ahead
+     * of the last sample, rather than returning it unchanged because the
+     * pointer has stopped.
+     */
+    public boolean isExtrapolating(long timeNanos) {
+        return started && horizon(timeNanos - time) > 0;
+    }
+
+    /**
+     * @return how far ahead to extrapolate, in nanoseconds, lead after the
+     * last sample: lead itself up to the limit, then back down to zero.
+     */
+    private static long horizon(long lead) {
+        if (lead <= 0 || lead >= MAX_LEAD_NANOS + FADE_NANOS) {
+            return 0;
+        }
+        if (lead <= MAX_LEAD_NANOS) {
+            return lead;
+        }
+        return MAX_LEAD_NANOS * (MAX_LEAD_NANOS + FADE_NANOS - lead) / FADE_NANOS;
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * @return the filtered position as of the last sample.
+     */
+    public float getX() {
+        return x;
+    }
+
+    public float getY() {
+        return y;
+    }
+
+}
@@ -0,0 +1,186 @@
+package com.aircanvas;
+
+import java.util.List;
+
+/**
+ * Picks the camera preview size and frame rate that keep tracking within a
+ * time budget per frame. The choices form a ladder of levels ordered by
+ * load, from the smallest size at the lowest frame rate up to the largest
+ * size at the highest, and the governor moves one level at a time as the
+ * measured processing time changes, for instance when the device heats up
+ * and throttles.
+ *
+ * Processing times are averaged over a window of frames. A level is left
+ * for a lighter one when the average exceeds the budget, and for a heavier
+ * one only when the average, scaled by the heavier level's pixel count,
+ * would still use less than {@link #UP_FRACTION} of it. Changes are at
+ * least {@link #HOLD_NANOS} apart, and after stepping down the governor
+ * waits {@link #UP_HOLD_NANOS} before stepping up again, so it settles
+ * instead of oscillating between two levels.
+ *
+ * The budget of a level is never more than most of its frame interval, so
+ * the processing thread keeps up with the camera.
+ *
+ * {@link #onFrame} is called on the processing thread and {@link #setLevel}
+ * once the change it asked for has been applied, with the processing
+ * thread stopped in between.
+ */
+public class PreviewGovernor {
+
+    /**
+     * A preview size and frame rate range, in the camera's frames per 1000
+     * seconds.
+     */
+    public static class Level {
+        public final int width;
+        public final int height;
+        public final int minFps;
+        public final int maxFps;
+
+        public Level(int width, int height, int minFps, int maxFps) {
+            this.width = width;
+            this.height = height;
+            this.minFps = minFps;
+            this.maxFps = maxFps;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + " at " + minFps / 1000 + "-" + maxFps / 1000 + " fps";
+        }
+    }
+
+    static final int WINDOW_FRAMES = 30;
+    static final float UP_FRACTION = 0.6f;
+    static final long HOLD_NANOS = 2000000000L;
+    static final long UP_HOLD_NANOS = 10000000000L;
+    // processing may take this much of a level's frame interval
+    static final float INTERVAL_FRACTION = 0.8f;
+
+    private final List<Level> levels;
+    private final long budgetNanos;
+    private int level;
+    private boolean pending;
+
+    private int windowFrames;
+    private long windowNanos;
+    private long lastAverage;
+    private long lastChange = Long.MIN_VALUE / 2;
+    private long lastDown = Long.MIN_VALUE / 2;
+    private int changes;
+
+    /**
+     * @param levels - Ordered from the lightest load to the heaviest.
+     * @param start - Index of the level in use.
+     * @param budgetNanos - Time one frame may take to process.
+     */
+    public PreviewGovernor(List<Level> levels, int start, long budgetNanos) {
+        this.levels = levels;
+        this.level = start;
+        this.budgetNanos = budgetNanos;
+    }
+
+    /**
+     * Records the processing time of one frame.
+     *
+     * @param nowNanos - The current System.nanoTime.
+     * @return - The index of the level to change to, or -1 to stay. Once a
+     * change is returned no other is until {@link #setLevel} is called.
+     */
+    public int onFrame(long processNanos, long nowNanos) {
+        if (pending) {
+            return -1;
+        }
+        windowNanos += processNanos;
+        if (++windowFrames < WINDOW_FRAMES) {
+            return -1;
+        }
+        long average = windowNanos / windowFrames;
+        lastAverage = average;
+        windowFrames = 0;
+        windowNanos = 0;
+        if (nowNanos - lastChange < HOLD_NANOS) {
+            return -1;
+        }
+
+        if (average > budget(level) && level > 0) {
+            lastDown = nowNanos;
+            return request(level - 1);
+        }
+        if (level + 1 < levels.size() && nowNanos - lastDown >= UP_HOLD_NANOS) {
+            Level current = levels.get(level);
+            Level next = levels.get(level + 1);
+            float scale = (float) next.width * next.height / (current.width * current.height);
+            if (average * scale < UP_FRACTION * budget(level + 1)) {
+                return request(level + 1);
+            }
+        }
+        return -1;
+    }
+
+    private int request(int index) {
+        pending = true;
+        return index;
+    }
+
+    /**
+     * The budget at a level: the target, or most of the frame interval if
+     * that is shorter.
+     */
+    private long budget(int index) {
+        int maxFps = levels.get(index).maxFps;
+        if (maxFps <= 0) {
+            return budgetNanos;
+        }
+        long interval = (long) (INTERVAL_FRACTION * 1e12 / maxFps);
+        return Math.min(budgetNanos, interval);
+    }
+
+    /**
+     * Records that the preview now runs at a level, normally the one
+     * {@link #onFrame} asked for, and starts measuring it afresh.
+     *
+     * @param nowNanos - The current System.nanoTime.
+     */
+    public void setLevel(int index, long nowNanos) {
+        if (index != level) {
+            changes++;
+        }
+        level = index;
+        pending = false;
+        windowFrames = 0;
+        windowNanos = 0;
+        lastChange = nowNanos;
+    }
+
+    /**
+     * Drops a change asked for by {@link #onFrame} that could not be applied.
+     */
+    public void cancel() {
+        pending = false;
+    }
+
+    public int getLevelIndex() {
+        return level;
+    }
+
+    public Level getLevel() {
+        return levels.get(level);
+    }
+
+    public Level getLevel(int index) {
+        return levels.get(index);
+    }
+
+    /**
+     * @return the average processing time of the last complete window.
+     */
+    public long getLastAverageNanos() {
+        return lastAverage;
+    }
+
+    public int getChangeCount() {
+        return changes;
+    }
+
+}
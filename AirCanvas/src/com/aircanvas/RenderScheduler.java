@@ -0,0 +1,207 @@
+package com.aircanvas;
+
+import android.opengl.GLSurfaceView;
+import android.os.Build;
+import android.view.Choreographer;
+
+/**
+ * Paces rendering to the display refresh. Callers mark the view dirty with
+ * {@link #invalidate} as often as they like; the scheduler renders at most
+ * once per vsync, folding every request that arrives in between into that
+ * one frame. While the camera is being panned it keeps rendering every vsync
+ * on its own and moves the camera one step per frame, then drops back to
+ * rendering on demand when panning stops. An export in progress keeps it
+ * rendering every vsync in the same way until the export is done, and so
+ * does a stroke tip drawn ahead of the pointer until the pointer stops.
+ * After each frame it checks once more on the next vsync, as the frame may
+ * have started any of these, then stays idle.
+ *
+ * Vsync comes from Choreographer on Jelly Bean and later; older devices
+ * fall back to a 16 ms timer on the view's handler.
+ */
+public class RenderScheduler {
+
+    private static final long FALLBACK_FRAME_MS = 16;
+
+    private final GLSurfaceView mView;
+    private final MyGLRenderer mRenderer;
+    private final Ticker mTicker;
+
+    // only touched on the UI thread
+    private boolean mDirty;
+    private boolean mTickPending;
+    private int mPanMask;
+    private int mRequestedFrame;
+
+    private int mRequests;
+    private int mRendered;
+    private int mCoalesced;
+    private int mSkipped;
+
+    public RenderScheduler(GLSurfaceView view, MyGLRenderer renderer) {
+        mView = view;
+        mRenderer = renderer;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mTicker = new ChoreographerTicker();
+        } else {
+            mTicker = new HandlerTicker();
+        }
+    }
+
+    /**
+     * Asks for a frame at the next vsync. UI thread only.
+     */
+    public void invalidate() {
+        mRequests++;
+        if (mDirty) {
+            // a frame is already on its way and will pick this change up
+            mCoalesced++;
+            return;
+        }
+        mDirty = true;
+        scheduleTick();
+    }
+
+    /**
+     * Sets which directions the camera is panning in, as a mask of
+     * 1 << {@link InputQueue} PAN_ commands; 0 stops panning. While the mask
+     * is non-zero a frame is rendered every vsync. UI thread only.
+     */
+    public void setPanMask(int panMask) {
+        mPanMask = panMask;
+        if (panMask != 0) {
+            scheduleTick();
+        }
+    }
+
+    public boolean isContinuous() {
+        return mPanMask != 0 || mRenderer.isExporting() || mRenderer.isPredicting();
+    }
+
+    /**
+     * Stops the vsync callbacks, for when the view is paused.
+     */
+    public void cancel() {
+        mTicker.cancel();
+        mTickPending = false;
+        mDirty = false;
+        mPanMask = 0;
+    }
+
+    /**
+     * @return calls to {@link #invalidate}.
+     */
+    public int getRequestCount() {
+        return mRequests;
+    }
+
+    /**
+     * @return frames handed to the GL thread.
+     */
+    public int getRenderedCount() {
+        return mRendered;
+    }
+
+    /**
+     * @return requests folded into a frame that was already scheduled.
+     */
+    public int getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    /**
+     * @return vsyncs passed over because the GL thread had not finished the
+     * previous frame yet.
+     */
+    public int getSkippedCount() {
+        return mSkipped;
+    }
+
+    private void scheduleTick() {
+        if (!mTickPending) {
+            mTickPending = true;
+            mTicker.post();
+        }
+    }
+
+    /**
+     * Runs on the UI thread once per vsync while there is work to do.
+     */
+    private void onVsync() {
+        mTickPending = false;
+        if (mRenderer.getFramesDrawn() < mRequestedFrame) {
+            // still drawing the last frame, try again on the next vsync
+            if (mDirty || isContinuous()) {
+                mSkipped++;
+            }
+            scheduleTick();
+            return;
+        }
+
+        boolean continuous = isContinuous();
+        if (!mDirty && !continuous) {
+            return;
+        }
+
+        for (int command = InputQueue.PAN_LEFT; command <= InputQueue.PAN_BACK; command++) {
+            if ((mPanMask & (1 << command)) != 0) {
+                mRenderer.post(command, 0, 0);
+            }
+        }
+
+        mDirty = false;
+        mRequestedFrame = mRenderer.getFramesDrawn() + 1;
+        mRendered++;
+        mView.requestRender();
+
+        // look again next vsync even when idle: the frame just asked for may
+        // start predicting a tip, which is only known once it is drawn
+        scheduleTick();
+    }
+
+    private interface Ticker {
+        void post();
+
+        void cancel();
+    }
+
+    /**
+     * Kept in its own class so Choreographer is only loaded on devices that have it.
+     */
+    private class ChoreographerTicker implements Ticker, Choreographer.FrameCallback {
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+
+        @Override
+        public void post() {
+            mChoreographer.postFrameCallback(this);
+        }
+
+        @Override
+        public void cancel() {
+            mChoreographer.removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            onVsync();
+        }
+    }
+
+    private class HandlerTicker implements Ticker, Runnable {
+        @Override
+        public void post() {
+            mView.postDelayed(this, FALLBACK_FRAME_MS);
+        }
+
+        @Override
+        public void cancel() {
+            mView.removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            onVsync();
+        }
+    }
+
+}
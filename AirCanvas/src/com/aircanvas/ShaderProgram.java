@@ -0,0 +1,91 @@
+package com.aircanvas;
+
+import java.util.HashMap;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * A linked OpenGL ES program along with the attribute and uniform locations
+ * that were looked up when it was linked. Instances are shared between all
+ * shapes through {@link MyGLRenderer#getProgram}, so a vertex/fragment pair
+ * is only ever compiled once per GL context.
+ */
+public class ShaderProgram {
+
+    private static final String TAG = "ShaderProgram";
+
+    private final int mProgram;
+    private final HashMap<String, Integer> mAttributes = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> mUniforms = new HashMap<String, Integer>();
+
+    /**
+     * Compiles and links the program, then resolves every named attribute
+     * and uniform. Must be called on the GL thread.
+     */
+    ShaderProgram(String vertexShaderCode, String fragmentShaderCode,
+            String[] attributes, String[] uniforms) {
+        // prepare shaders and OpenGL program
+        int vertexShader = MyGLRenderer.loadShader(
+                GLES20.GL_VERTEX_SHADER, vertexShaderCode);
+        int fragmentShader = MyGLRenderer.loadShader(
+                GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
+
+        mProgram = GLES20.glCreateProgram();             // create empty OpenGL Program
+        GLES20.glAttachShader(mProgram, vertexShader);   // add the vertex shader to program
+        GLES20.glAttachShader(mProgram, fragmentShader); // add the fragment shader to program
+        GLES20.glLinkProgram(mProgram);                  // create OpenGL program executables
+
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(mProgram, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            Log.e(TAG, "Could not link program: " + GLES20.glGetProgramInfoLog(mProgram));
+        }
+
+        // the program keeps the compiled code, the shader objects are no longer needed
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+
+        resolve(attributes, uniforms);
+    }
+
+    /**
+     * Looks up any attribute or uniform locations that have not been cached yet.
+     */
+    void resolve(String[] attributes, String[] uniforms) {
+        for (String name : attributes) {
+            if (!mAttributes.containsKey(name)) {
+                mAttributes.put(name, GLES20.glGetAttribLocation(mProgram, name));
+            }
+        }
+        for (String name : uniforms) {
+            if (!mUniforms.containsKey(name)) {
+                mUniforms.put(name, GLES20.glGetUniformLocation(mProgram, name));
+            }
+        }
+        MyGLRenderer.checkGlError("glGetUniformLocation");
+    }
+
+    public int getProgram() {
+        return mProgram;
+    }
+
+    /**
+     * @return the location of an attribute named when the program was linked,
+     * or -1 if it was not requested or is not active.
+     */
+    public int getAttribLocation(String name) {
+        Integer location = mAttributes.get(name);
+        return location == null ? -1 : location;
+    }
+
+    /**
+     * @return the location of a uniform named when the program was linked,
+     * or -1 if it was not requested or is not active.
+     */
+    public int getUniformLocation(String name) {
+        Integer location = mUniforms.get(name);
+        return location == null ? -1 : location;
+    }
+
+}
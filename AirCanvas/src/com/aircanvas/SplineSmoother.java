@@ -0,0 +1,186 @@
+package com.aircanvas;
+
+/**
+ * Smooths a stroke centerline with a uniform Catmull-Rom spline that passes
+ * through every input point. Each span gets only as many segments as the
+ * turn at its ends needs, so straight runs stay a single segment while
+ * tight curves are subdivided. The spline basis is evaluated once per
+ * subdivision level when the smoother is created and reused for every span.
+ */
+public class SplineSmoother {
+
+    static final int COORDS_PER_VERTEX = 3;
+
+    private final int maxSegments;
+    private final float xScale;
+    private final float yScale;
+
+    // basis[n] holds the four weights for t = 1/n .. (n-1)/n, one row after another
+    private final float[][] basis;
+
+    private float maxAngle = (float) Math.toRadians(10);
+    private float minSegmentLength = 4;
+    private int maxVertices = 4096;
+
+    // scratch space reused between strokes
+    private int[] segments = new int[0];
+
+    /**
+     * @param maxSegments - Most segments a single span is split into.
+     * @param xScale - Pixels per unit of x in the coordinates being smoothed.
+     * @param yScale - Pixels per unit of y in the coordinates being smoothed.
+     */
+    public SplineSmoother(int maxSegments, float xScale, float yScale) {
+        this.maxSegments = Math.max(maxSegments, 1);
+        this.xScale = xScale;
+        this.yScale = yScale;
+
+        basis = new float[this.maxSegments + 1][];
+        for (int n = 1; n <= this.maxSegments; n++) {
+            basis[n] = new float[4 * (n - 1)];
+            for (int k = 1; k < n; k++) {
+                float t = (float) k / n;
+                float t2 = t * t;
+                float t3 = t2 * t;
+                int i = 4 * (k - 1);
+                basis[n][i] = 0.5f * (-t + 2 * t2 - t3);
+                basis[n][i + 1] = 0.5f * (2 - 5 * t2 + 3 * t3);
+                basis[n][i + 2] = 0.5f * (t + 4 * t2 - 3 * t3);
+                basis[n][i + 3] = 0.5f * (-t2 + t3);
+            }
+        }
+    }
+
+    /**
+     * A span is split so that each segment turns by at most this many
+     * radians, estimated from the turn at both of its ends.
+     */
+    public void setMaxAngle(float radians) {
+        maxAngle = radians;
+    }
+
+    /**
+     * Segments are never made shorter than this many pixels.
+     */
+    public void setMinSegmentLength(float pixels) {
+        minSegmentLength = pixels;
+    }
+
+    /**
+     * Upper bound on the vertices produced for one stroke. When the curvature
+     * asks for more, every span is scaled back proportionally.
+     */
+    public void setMaxVertices(int maxVertices) {
+        this.maxVertices = maxVertices;
+    }
+
+    /**
+     * Appends the smoothed centerline to out.
+     *
+     * @param coords - x, y, z coordinates; only the first count vertices are read.
+     * @param count - Number of vertices.
+     * @param out - Receives x, y, z for every output vertex.
+     * @return - The number of vertices appended.
+     */
+    public int smooth(float[] coords, int count, FloatList out) {
+        if (count < 3) {
+            for (int i = 0; i < count * COORDS_PER_VERTEX; i++) {
+                out.add(coords[i]);
+            }
+            return count;
+        }
+
+        int spans = count - 1;
+        if (segments.length < spans) {
+            segments = new int[spans];
+        }
+
+        // pick a subdivision level for every span from its length and the turn at its ends
+        int total = 1;
+        for (int i = 0; i < spans; i++) {
+            float turn = Math.max(turn(coords, count, i), turn(coords, count, i + 1));
+            int n = (int) Math.ceil(turn / maxAngle);
+            float length = length(coords, i, i + 1);
+            n = Math.min(n, (int) (length / minSegmentLength));
+            n = Math.max(1, Math.min(n, maxSegments));
+            segments[i] = n;
+            total += n;
+        }
+        if (total > maxVertices) {
+            float scale = (float) (maxVertices - 1) / (total - 1);
+            total = 1;
+            for (int i = 0; i < spans; i++) {
+                segments[i] = Math.max(1, (int) (segments[i] * scale));
+                total += segments[i];
+            }
+        }
+
+        for (int i = 0; i < spans; i++) {
+            out.add(coords[i * COORDS_PER_VERTEX],
+                    coords[i * COORDS_PER_VERTEX + 1],
+                    coords[i * COORDS_PER_VERTEX + 2]);
+
+            int n = segments[i];
+            float[] weights = basis[n];
+            for (int k = 0; k < 4 * (n - 1); k += 4) {
+                out.add(blend(coords, count, i, 0, weights, k),
+                        blend(coords, count, i, 1, weights, k),
+                        blend(coords, count, i, 2, weights, k));
+            }
+        }
+        int last = (count - 1) * COORDS_PER_VERTEX;
+        out.add(coords[last], coords[last + 1], coords[last + 2]);
+
+        return total;
+    }
+
+    /**
+     * Weighted sum of one coordinate of the four control points around span i.
+     */
+    private static float blend(float[] coords, int count, int i, int c, float[] weights, int k) {
+        return weights[k] * coord(coords, count, i - 1, c)
+                + weights[k + 1] * coord(coords, count, i, c)
+                + weights[k + 2] * coord(coords, count, i + 1, c)
+                + weights[k + 3] * coord(coords, count, i + 2, c);
+    }
+
+    /**
+     * Coordinate c of point i, extending the stroke past either end by
+     * mirroring the neighbouring point.
+     */
+    private static float coord(float[] coords, int count, int i, int c) {
+        if (i < 0) {
+            return 2 * coords[c] - coords[COORDS_PER_VERTEX + c];
+        }
+        if (i >= count) {
+            return 2 * coords[(count - 1) * COORDS_PER_VERTEX + c]
+                    - coords[(count - 2) * COORDS_PER_VERTEX + c];
+        }
+        return coords[i * COORDS_PER_VERTEX + c];
+    }
+
+    /**
+     * @return the angle in radians between the segments meeting at point i,
+     * 0 at either end of the stroke.
+     */
+    private float turn(float[] coords, int count, int i) {
+        if (i == 0 || i == count - 1) {
+            return 0;
+        }
+        float ax = (coords[i * COORDS_PER_VERTEX] - coords[(i - 1) * COORDS_PER_VERTEX]) * xScale;
+        float ay = (coords[i * COORDS_PER_VERTEX + 1] - coords[(i - 1) * COORDS_PER_VERTEX + 1]) * yScale;
+        float bx = (coords[(i + 1) * COORDS_PER_VERTEX] - coords[i * COORDS_PER_VERTEX]) * xScale;
+        float by = (coords[(i + 1) * COORDS_PER_VERTEX + 1] - coords[i * COORDS_PER_VERTEX + 1]) * yScale;
+        return (float) Math.abs(Math.atan2(ax * by - ay * bx, ax * bx + ay * by));
+    }
+
+    /**
+     * @return the distance in pixels between points i and j.
+     */
+    private float length(float[] coords, int i, int j) {
+        float dx = (coords[j * COORDS_PER_VERTEX] - coords[i * COORDS_PER_VERTEX]) * xScale;
+        float dy = (coords[j * COORDS_PER_VERTEX + 1] - coords[i * COORDS_PER_VERTEX + 1]) * yScale;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.aircanvas;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A uniform grid over the canvas plane that buckets strokes by their
+ * bounding boxes, so a frame only has to test the strokes in cells that
+ * the view can see.
+ */
+class StrokeGrid {
+
+    private final float cellSize;
+    private final HashMap<Long, Cell> cells = new HashMap<Long, Cell>();
+    // same cells as the map, for iterating without an iterator per frame
+    private final ArrayList<Cell> cellList = new ArrayList<Cell>();
+
+    StrokeGrid(float cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    void add(StrokeStore.Stroke stroke) {
+        float[] b = stroke.bounds;
+        int x0 = cell(b[0]), x1 = cell(b[3]);
+        int y0 = cell(b[1]), y1 = cell(b[4]);
+        for (int x = x0; x <= x1; x++) {
+            for (int y = y0; y <= y1; y++) {
+                Long key = ((long) x << 32) | (y & 0xffffffffL);
+                Cell c = cells.get(key);
+                if (c == null) {
+                    c = new Cell();
+                    cells.put(key, c);
+                    cellList.add(c);
+                }
+                c.add(stroke);
+            }
+        }
+    }
+
+    /**
+     * Takes a stroke out of the cells it was added to. The cells keep the
+     * bounds they had, which only makes them test positive a little more
+     * often.
+     */
+    void remove(StrokeStore.Stroke stroke) {
+        float[] b = stroke.bounds;
+        int x0 = cell(b[0]), x1 = cell(b[3]);
+        int y0 = cell(b[1]), y1 = cell(b[4]);
+        for (int x = x0; x <= x1; x++) {
+            for (int y = y0; y <= y1; y++) {
+                Cell c = cells.get(((long) x << 32) | (y & 0xffffffffL));
+                if (c != null) {
+                    c.strokes.remove(stroke);
+                }
+            }
+        }
+    }
+
+    void clear() {
+        cells.clear();
+        cellList.clear();
+    }
+
+    /**
+     * Stamps every stroke that is not hidden and intersects the frustum with
+     * frame. A stroke
+     * spanning several visible cells is only tested once.
+     *
+     * @return - The number of strokes marked visible.
+     */
+    int markVisible(Frustum frustum, int frame) {
+        int visible = 0;
+        for (int i = 0; i < cellList.size(); i++) {
+            Cell c = cellList.get(i);
+            if (!frustum.intersects(c.bounds)) {
+                continue;
+            }
+            for (int j = 0; j < c.strokes.size(); j++) {
+                StrokeStore.Stroke stroke = c.strokes.get(j);
+                if (stroke.testedFrame == frame) {
+                    continue;
+                }
+                stroke.testedFrame = frame;
+                if (!stroke.hidden && frustum.intersects(stroke.bounds)) {
+                    stroke.visibleFrame = frame;
+                    visible++;
+                }
+            }
+        }
+        return visible;
+    }
+
+    private int cell(float coord) {
+        return (int) Math.floor(coord / cellSize);
+    }
+
+    private static class Cell {
+        // union of the bounds of the strokes in this cell
+        final float[] bounds = {
+                Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+                -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+        final ArrayList<StrokeStore.Stroke> strokes = new ArrayList<StrokeStore.Stroke>();
+
+        void add(StrokeStore.Stroke stroke) {
+            strokes.add(stroke);
+            for (int i = 0; i < 3; i++) {
+                bounds[i] = Math.min(bounds[i], stroke.bounds[i]);
+                bounds[i + 3] = Math.max(bounds[i + 3], stroke.bounds[i + 3]);
+            }
+        }
+    }
+
+}
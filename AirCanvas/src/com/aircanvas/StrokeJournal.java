@@ -0,0 +1,459 @@
+package com.aircanvas;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Persists committed strokes as they happen. Each stroke is appended to a
+ * journal file as one record; a writer thread collects the records that
+ * arrive within {@link #GROUP_COMMIT_MS} and makes them durable with a
+ * single fsync. Once the journal has grown to half the size of the snapshot
+ * it is compacted: the whole canvas is rewritten as a {@link CanvasFile}
+ * snapshot and the journal starts over empty, so the cost of rewriting
+ * stays proportional to the strokes added since the last snapshot.
+ *
+ * The journal starts with the magic "ACJL" and a version, followed by
+ * little-endian records:
+ *
+ * <pre>
+ * length of the rest of the record in bytes, type, sequence number,
+ * index of the stroke in the canvas,
+ *   stroke: centerline point count, strip vertex count, RGBA color,
+ *           6 bounds, centerline x, y, z, strip x, y, z
+ *   remove: nothing more, the stroke at index was the last and is undone
+ * CRC32 of everything from type to the end of the payload
+ * </pre>
+ *
+ * Sequence numbers grow by one per record and a snapshot stores the last
+ * one it includes, so recovery replays only the records after it. A crash
+ * between writing a snapshot and emptying the journal therefore does not
+ * apply anything twice. A torn or corrupt record ends the replay and is
+ * cut off the journal.
+ */
+public class StrokeJournal {
+
+    private static final String TAG = "StrokeJournal";
+
+    static final int MAGIC = 'A' | 'C' << 8 | 'J' << 16 | 'L' << 24;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 8;
+
+    static final int TYPE_STROKE = 1;
+    static final int TYPE_REMOVE = 2;
+    // type, sequence and index, then for a stroke two counts, 4 color and 6 bound floats
+    private static final int RECORD_HEADER_BYTES = 3 * 4;
+    private static final int STROKE_HEADER_BYTES = RECORD_HEADER_BYTES + (2 + 4 + 6) * 4;
+
+    // records arriving within this window share one fsync
+    static final long GROUP_COMMIT_MS = 200;
+    // never compact a journal smaller than this
+    static final long MIN_COMPACT_BYTES = 1 << 20;
+
+    private static final int COORDS_PER_VERTEX = TriLine.COORDS_PER_VERTEX;
+
+    private final File mSnapshotFile;
+    private final File mJournalFile;
+
+    private final Object mLock = new Object();
+    // guarded by mLock; a null entry removes the last stroke
+    private final ArrayList<TriLine> mPending = new ArrayList<TriLine>();
+    private boolean mFlushRequested;
+    private boolean mRunning;
+    private boolean mClosed;
+
+    // only touched on the writer thread once it runs
+    private final ArrayList<TriLine> mLines = new ArrayList<TriLine>();
+    private RandomAccessFile mJournal;
+    private long mJournalBytes;
+    private long mSnapshotBytes;
+    private int mSequence;
+    private ByteBuffer mRecord = ByteBuffer.allocate(4096);
+    private final CRC32 mCrc = new CRC32();
+    private Thread mWriter;
+
+    private volatile int mSyncs;
+    private volatile int mRecords;
+    private volatile int mCompactions;
+
+    public StrokeJournal(File snapshotFile, File journalFile) {
+        mSnapshotFile = snapshotFile;
+        mJournalFile = journalFile;
+    }
+
+    /**
+     * Restores the canvas from the snapshot and the journal tail, then
+     * starts the writer thread. Does file I/O, so call it off the UI thread.
+     *
+     * @return - The recovered strokes in the order they were committed.
+     */
+    public List<TriLine> recover() throws IOException {
+        if (mSnapshotFile.exists()) {
+            mLines.addAll(CanvasFile.read(mSnapshotFile));
+            mSequence = CanvasFile.readJournalSequence(mSnapshotFile);
+            mSnapshotBytes = mSnapshotFile.length();
+        }
+        int fromSnapshot = mLines.size();
+
+        mJournal = new RandomAccessFile(mJournalFile, "rw");
+        mJournalBytes = replay(mJournal.getChannel());
+        if (mJournalBytes < mJournal.length()) {
+            Log.w(TAG, "discarding " + (mJournal.length() - mJournalBytes)
+                    + " bytes after the last complete journal record");
+            mJournal.setLength(mJournalBytes);
+        }
+        if (mJournalBytes == 0) {
+            writeHeader();
+        }
+        mJournal.seek(mJournalBytes);
+        Log.i(TAG, "recovered " + fromSnapshot + " strokes from the snapshot, "
+                + (mLines.size() - fromSnapshot) + " net from the journal");
+
+        synchronized (mLock) {
+            if (mClosed) {
+                mJournal.close();
+                return new ArrayList<TriLine>(mLines);
+            }
+            mRunning = true;
+        }
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "StrokeJournal");
+        mWriter.start();
+        return new ArrayList<TriLine>(mLines);
+    }
+
+    /**
+     * Queues a committed or redone stroke to be journaled. Cheap enough for the GL
+     * thread; the write and fsync happen on the writer thread.
+     */
+    public void append(TriLine line) {
+        synchronized (mLock) {
+            if (!mRunning) {
+                return;
+            }
+            mPending.add(line);
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Queues the removal of the most recently appended stroke, for undo.
+     */
+    public void removeLast() {
+        synchronized (mLock) {
+            if (!mRunning) {
+                return;
+            }
+            mPending.add(null);
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Asks the writer to sync whatever is queued now instead of waiting for
+     * the group commit window, for when the activity pauses. Does not block.
+     */
+    public void flush() {
+        synchronized (mLock) {
+            mFlushRequested = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Syncs the queued strokes and stops the writer thread.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mRunning = false;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of fsyncs so far; each covers one or more records.
+     */
+    public int getSyncCount() {
+        return mSyncs;
+    }
+
+    /**
+     * @return the number of records written since recovery.
+     */
+    public int getRecordCount() {
+        return mRecords;
+    }
+
+    public int getCompactionCount() {
+        return mCompactions;
+    }
+
+    private void writeLoop() {
+        ArrayList<TriLine> batch = new ArrayList<TriLine>();
+        boolean running = true;
+        while (running) {
+            try {
+                synchronized (mLock) {
+                    while (mRunning && mPending.isEmpty() && !mFlushRequested) {
+                        mLock.wait();
+                    }
+                    // give the strokes that follow closely a chance to share the fsync
+                    long deadline = System.currentTimeMillis() + GROUP_COMMIT_MS;
+                    long wait;
+                    while (mRunning && !mFlushRequested
+                            && (wait = deadline - System.currentTimeMillis()) > 0) {
+                        mLock.wait(wait);
+                    }
+                    batch.addAll(mPending);
+                    mPending.clear();
+                    mFlushRequested = false;
+                    running = mRunning;
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+
+            try {
+                if (!batch.isEmpty()) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        TriLine line = batch.get(i);
+                        if (line != null) {
+                            encodeStroke(line);
+                            write();
+                            mLines.add(line);
+                        } else if (!mLines.isEmpty()) {
+                            encodeRemove();
+                            write();
+                            mLines.remove(mLines.size() - 1);
+                        }
+                    }
+                    mJournal.getChannel().force(false);
+                    mSyncs++;
+                    mRecords += batch.size();
+                    batch.clear();
+                }
+                if (mJournalBytes > Math.max(MIN_COMPACT_BYTES, mSnapshotBytes / 2)) {
+                    compact();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write the stroke journal", e);
+                batch.clear();
+            }
+        }
+
+        try {
+            mJournal.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close the stroke journal", e);
+        }
+    }
+
+    /**
+     * Writes every stroke to a new snapshot, then empties the journal. The
+     * snapshot replaces the old one atomically, and its sequence number
+     * tells recovery which journal records it already contains.
+     */
+    private void compact() throws IOException {
+        long start = System.nanoTime();
+        CanvasFile.write(mSnapshotFile, mLines, mSequence);
+        mSnapshotBytes = mSnapshotFile.length();
+        mJournal.setLength(0);
+        writeHeader();
+        mJournal.getChannel().force(true);
+        mCompactions++;
+        Log.i(TAG, "compacted " + mLines.size() + " strokes in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    private void writeHeader() throws IOException {
+        mRecord.clear();
+        mRecord.order(ByteOrder.LITTLE_ENDIAN);
+        mRecord.putInt(MAGIC).putInt(VERSION);
+        mRecord.flip();
+        mJournalBytes = 0;
+        mJournal.seek(0);
+        write();
+    }
+
+    /**
+     * Starts a record in mRecord with the next sequence number.
+     */
+    private void beginRecord(int length, int type, int index) {
+        if (mRecord.capacity() < length + 4) {
+            mRecord = ByteBuffer.allocate(Math.max(length + 4, 2 * mRecord.capacity()));
+        }
+        mRecord.clear();
+        mRecord.order(ByteOrder.LITTLE_ENDIAN);
+        mRecord.putInt(length);
+        mRecord.putInt(type).putInt(++mSequence).putInt(index);
+    }
+
+    /**
+     * Appends the checksum and readies mRecord for writing.
+     */
+    private void endRecord(int length) {
+        mCrc.reset();
+        mCrc.update(mRecord.array(), 4, length - 4);
+        mRecord.putInt((int) mCrc.getValue());
+        mRecord.flip();
+    }
+
+    private void encodeStroke(TriLine line) {
+        int floats = (line.getPointCount() + line.getVertexCount()) * COORDS_PER_VERTEX;
+        int length = STROKE_HEADER_BYTES + floats * 4 + 4;
+        beginRecord(length, TYPE_STROKE, mLines.size());
+        mRecord.putInt(line.getPointCount())
+                .putInt(line.getVertexCount());
+        float[] color = line.color;
+        for (int i = 0; i < 4; i++) {
+            mRecord.putFloat(color[i]);
+        }
+        float[] bounds = line.getBounds();
+        for (int i = 0; i < 6; i++) {
+            mRecord.putFloat(bounds[i]);
+        }
+        mRecord.asFloatBuffer().put(line.centerline.duplicate()).put(line.triLineCoords.duplicate());
+        mRecord.position(mRecord.position() + floats * 4);
+        endRecord(length);
+    }
+
+    private void encodeRemove() {
+        int length = RECORD_HEADER_BYTES + 4;
+        beginRecord(length, TYPE_REMOVE, mLines.size() - 1);
+        endRecord(length);
+    }
+
+    private void write() throws IOException {
+        FileChannel channel = mJournal.getChannel();
+        while (mRecord.hasRemaining()) {
+            mJournalBytes += channel.write(mRecord);
+        }
+    }
+
+    /**
+     * Applies every intact record after the snapshot to mLines.
+     *
+     * @return - The length of the intact part of the journal, 0 if it has
+     * no valid header.
+     */
+    private long replay(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer word = ByteBuffer.allocate(4);
+        word.order(ByteOrder.LITTLE_ENDIAN);
+        if (size < HEADER_BYTES || readInt(channel, word, 0) != MAGIC
+                || readInt(channel, word, 4) != VERSION) {
+            if (size > 0) {
+                Log.w(TAG, mJournalFile + " is not a version " + VERSION + " journal");
+            }
+            return 0;
+        }
+
+        long position = HEADER_BYTES;
+        while (position + 4 <= size) {
+            int length = readInt(channel, word, position);
+            if (length < RECORD_HEADER_BYTES + 4 || position + 4 + length > size) {
+                break;
+            }
+
+            if (mRecord.capacity() < length) {
+                mRecord = ByteBuffer.allocate(length);
+            }
+            mRecord.clear();
+            mRecord.limit(length);
+            while (mRecord.hasRemaining()) {
+                if (channel.read(mRecord, position + 4 + mRecord.position()) < 0) {
+                    return position;
+                }
+            }
+            mRecord.flip();
+            mRecord.order(ByteOrder.LITTLE_ENDIAN);
+
+            mCrc.reset();
+            mCrc.update(mRecord.array(), 0, length - 4);
+            if ((int) mCrc.getValue() != mRecord.getInt(length - 4)) {
+                break;
+            }
+            if (!readRecord(length)) {
+                break;
+            }
+            position += 4 + length;
+        }
+        return position;
+    }
+
+    private static int readInt(FileChannel channel, ByteBuffer word, long position)
+            throws IOException {
+        word.clear();
+        while (word.hasRemaining()) {
+            if (channel.read(word, position + word.position()) < 0) {
+                return 0;
+            }
+        }
+        return word.getInt(0);
+    }
+
+    /**
+     * @return - false if the record in mRecord does not follow on from the
+     * canvas restored so far.
+     */
+    private boolean readRecord(int length) {
+        int type = mRecord.getInt();
+        int sequence = mRecord.getInt();
+        int index = mRecord.getInt();
+        if (sequence <= mSequence) {
+            // already part of the snapshot
+            return true;
+        }
+        if (sequence != mSequence + 1) {
+            return false;
+        }
+
+        if (type == TYPE_REMOVE) {
+            if (length != RECORD_HEADER_BYTES + 4 || index != mLines.size() - 1) {
+                return false;
+            }
+            mLines.remove(index);
+            mSequence = sequence;
+            return true;
+        }
+
+        if (type != TYPE_STROKE || index != mLines.size()) {
+            return false;
+        }
+        int points = mRecord.getInt();
+        int vertices = mRecord.getInt();
+        if (points < 0 || vertices < 0
+                || STROKE_HEADER_BYTES + 4L * COORDS_PER_VERTEX * ((long) points + vertices) + 4
+                        != length) {
+            return false;
+        }
+        float[] color = new float[4];
+        for (int i = 0; i < 4; i++) {
+            color[i] = mRecord.getFloat();
+        }
+        float[] bounds = new float[6];
+        for (int i = 0; i < 6; i++) {
+            bounds[i] = mRecord.getFloat();
+        }
+        float[] centerline = new float[points * COORDS_PER_VERTEX];
+        float[] strip = new float[vertices * COORDS_PER_VERTEX];
+        mRecord.asFloatBuffer().get(centerline).get(strip);
+        mLines.add(new TriLine(centerline, strip, color, bounds));
+        mSequence = sequence;
+        return true;
+    }
+
+}
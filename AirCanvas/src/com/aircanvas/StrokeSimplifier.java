@@ -0,0 +1,168 @@
+package com.aircanvas;
+
+/**
+ * Drops nearly collinear points from a finished stroke with the
+ * Ramer-Douglas-Peucker algorithm. The tolerance is the largest distance,
+ * in screen pixels, that the simplified line may stray from the captured
+ * one, so the vertex count follows the shape of the stroke rather than how
+ * long it took to draw.
+ */
+public class StrokeSimplifier {
+
+    static final int COORDS_PER_VERTEX = 3;
+
+    private float tolerance;
+    private final float xScale;
+    private final float yScale;
+
+    // scratch space reused between strokes
+    private boolean[] keep = new boolean[0];
+    private int[] stack = new int[0];
+
+    private int lastInputCount;
+    private int lastOutputCount;
+    private long totalInputCount;
+    private long totalOutputCount;
+
+    /**
+     * @param tolerance - Maximum error in pixels, 0 keeps every point.
+     * @param xScale - Pixels per unit of x in the coordinates being simplified.
+     * @param yScale - Pixels per unit of y in the coordinates being simplified.
+     */
+    public StrokeSimplifier(float tolerance, float xScale, float yScale) {
+        this.tolerance = tolerance;
+        this.xScale = xScale;
+        this.yScale = yScale;
+    }
+
+    public float getTolerance() {
+        return tolerance;
+    }
+
+    public void setTolerance(float tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Simplifies a polyline.
+     *
+     * @param coords - x, y, z coordinates; only the first count vertices are read.
+     * @param count - Number of vertices.
+     * @return - A new array holding the vertices that were kept, in order.
+     * The first and last vertex are always kept.
+     */
+    public float[] simplify(float[] coords, int count) {
+        int kept = count;
+        if (count > 2 && tolerance > 0) {
+            kept = mark(coords, count);
+        }
+
+        float[] result = new float[kept * COORDS_PER_VERTEX];
+        if (kept == count) {
+            System.arraycopy(coords, 0, result, 0, result.length);
+        } else {
+            int j = 0;
+            for (int i = 0; i < count; i++) {
+                if (keep[i]) {
+                    System.arraycopy(coords, i * COORDS_PER_VERTEX, result, j, COORDS_PER_VERTEX);
+                    j += COORDS_PER_VERTEX;
+                }
+            }
+        }
+
+        lastInputCount = count;
+        lastOutputCount = kept;
+        totalInputCount += count;
+        totalOutputCount += kept;
+        return result;
+    }
+
+    /**
+     * Flags the vertices to keep, splitting at the farthest vertex of each
+     * span until every span is within tolerance. Uses an explicit stack so
+     * long strokes cannot overflow the thread stack.
+     *
+     * @return - The number of vertices kept.
+     */
+    private int mark(float[] coords, int count) {
+        if (keep.length < count) {
+            keep = new boolean[count];
+            stack = new int[2 * count];
+        }
+        for (int i = 0; i < count; i++) {
+            keep[i] = false;
+        }
+        keep[0] = true;
+        keep[count - 1] = true;
+        int kept = 2;
+
+        // compare squared pixel distances to avoid a square root per point
+        float toleranceSq = tolerance * tolerance;
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            float ax = coords[first * COORDS_PER_VERTEX] * xScale;
+            float ay = coords[first * COORDS_PER_VERTEX + 1] * yScale;
+            float dx = coords[last * COORDS_PER_VERTEX] * xScale - ax;
+            float dy = coords[last * COORDS_PER_VERTEX + 1] * yScale - ay;
+            float lengthSq = dx * dx + dy * dy;
+
+            int farthest = -1;
+            float farthestSq = toleranceSq;
+            for (int i = first + 1; i < last; i++) {
+                float px = coords[i * COORDS_PER_VERTEX] * xScale - ax;
+                float py = coords[i * COORDS_PER_VERTEX + 1] * yScale - ay;
+                float distSq;
+                if (lengthSq == 0) {
+                    distSq = px * px + py * py;
+                } else {
+                    float cross = px * dy - py * dx;
+                    distSq = cross * cross / lengthSq;
+                }
+                if (distSq > farthestSq) {
+                    farthestSq = distSq;
+                    farthest = i;
+                }
+            }
+
+            if (farthest != -1) {
+                keep[farthest] = true;
+                kept++;
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * @return the number of vertices passed to the last {@link #simplify} call.
+     */
+    public int getLastInputCount() {
+        return lastInputCount;
+    }
+
+    /**
+     * @return the number of vertices the last {@link #simplify} call kept.
+     */
+    public int getLastOutputCount() {
+        return lastOutputCount;
+    }
+
+    /**
+     * @return the fraction of all vertices seen so far that were removed.
+     */
+    public float getTotalReduction() {
+        if (totalInputCount == 0) {
+            return 0;
+        }
+        return 1.0f - (float) totalOutputCount / totalInputCount;
+    }
+
+}
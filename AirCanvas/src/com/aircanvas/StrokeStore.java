@@ -0,0 +1,555 @@
+package com.aircanvas;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+import android.opengl.GLES20;
+
+/**
+ * Holds the geometry of every finished stroke packed into a few large
+ * vertex/index arenas. Each vertex carries its own color so strokes of
+ * different colors share an arena, and every arena is drawn with a single
+ * glDrawElements call. Strokes are triangle strips, chained inside an arena
+ * by repeating the last index of one stroke and the first of the next, which
+ * produces degenerate triangles the GPU skips.
+ *
+ * Arenas live on the GPU as GL_STATIC_DRAW buffer objects. A stroke is
+ * copied to the GPU once, on the first frame after it is added, so frames
+ * that add no strokes upload nothing.
+ *
+ * Every stroke keeps the bounding box it was committed with and is filed in
+ * a {@link StrokeGrid}. Each frame only strokes inside the view frustum are
+ * drawn; neighbouring visible strokes in an arena still go out as one draw
+ * call, so an arena that is entirely on screen costs a single call.
+ *
+ * Undo never touches uploaded geometry: a stroke is hidden with
+ * {@link #setHidden} and shown again on redo. Strokes that can no longer
+ * come back are dropped with {@link #remove}, which gives their space back
+ * when they are the last thing appended to their arena.
+ *
+ * Arenas index their vertices with GL_UNSIGNED_SHORT, or with
+ * GL_UNSIGNED_INT and a larger capacity where OES_element_index_uint is
+ * available. A stroke too long for one arena is split into chunks that
+ * overlap by two vertices, so the strip carries on seamlessly across them.
+ *
+ * {@link #add} makes no GL calls, so a large canvas can be filed into a
+ * fresh store on a background thread and handed to the GL thread's store
+ * with {@link #replaceWith}, which then uploads each arena in one call.
+ */
+public class StrokeStore {
+
+    private static final String vertexShaderCode =
+            "uniform mat4 uMVPMatrix;" +
+            "attribute vec4 vPosition;" +
+            "attribute vec4 aColor;" +
+            "varying vec4 vColor;" +
+            "void main() {" +
+            "  vColor = aColor;" +
+            "  gl_Position = uMVPMatrix * vPosition;" +
+            "}";
+
+    private static final String fragmentShaderCode =
+            "precision mediump float;" +
+            "varying vec4 vColor;" +
+            "void main() {" +
+            "  gl_FragColor = vColor;" +
+            "}";
+
+    static final int COORDS_PER_VERTEX = 3;
+    static final int COLORS_PER_VERTEX = 4;
+    static final int FLOATS_PER_VERTEX = COORDS_PER_VERTEX + COLORS_PER_VERTEX;
+    static final int VERTEX_STRIDE = FLOATS_PER_VERTEX * 4; // 4 bytes per float
+
+    // largest vertex count addressable with GL_UNSIGNED_SHORT indices
+    static final int SHORT_ARENA_VERTICES = 65536;
+    // arenas indexed with GL_UNSIGNED_INT are limited by memory rather than index range
+    static final int INT_ARENA_VERTICES = 1 << 17;
+    // consecutive chunks of a split stroke share this many vertices
+    private static final int CHUNK_OVERLAP = 2;
+    // vertices interleaved on the heap per bulk copy into an arena
+    private static final int STAGING_VERTICES = 1024;
+
+    // read by loading threads choosing the index type of a store they fill
+    private volatile boolean mIntIndices;
+    private int mArenaVertices = SHORT_ARENA_VERTICES;
+
+    private final ArrayList<Arena> mArenas = new ArrayList<Arena>();
+    private StrokeGrid mGrid = new StrokeGrid(0.25f);
+    private final float[] mStagingCoords = new float[STAGING_VERTICES * COORDS_PER_VERTEX];
+    private final float[] mStagingVertices = new float[STAGING_VERTICES * FLOATS_PER_VERTEX];
+    private final Frustum mFrustum = new Frustum();
+    private int mFrame;
+    private int mDrawCalls;
+    private int mDrawnVertices;
+    private int mVisibleStrokes;
+
+    private int mProgram;
+    private int mPositionHandle;
+    private int mColorHandle;
+    private int mMVPMatrixHandle;
+
+    /**
+     * Looks up the shared program. Must be called on the GL thread whenever
+     * a new context is created.
+     */
+    public void onSurfaceCreated() {
+        ShaderProgram program = MyGLRenderer.getProgram(
+                vertexShaderCode, fragmentShaderCode,
+                new String[] { "vPosition", "aColor" },
+                new String[] { "uMVPMatrix" });
+        mProgram = program.getProgram();
+        mPositionHandle = program.getAttribLocation("vPosition");
+        mColorHandle = program.getAttribLocation("aColor");
+        mMVPMatrixHandle = program.getUniformLocation("uMVPMatrix");
+
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        setIntIndices(extensions != null && extensions.contains("GL_OES_element_index_uint"));
+
+        // buffer objects from the old context are gone, upload everything again
+        for (int i = 0; i < mArenas.size(); i++) {
+            mArenas.get(i).releaseBuffers();
+        }
+    }
+
+    /**
+     * Chooses the index type for arenas opened from now on. Arenas that
+     * already exist keep the type they were created with.
+     */
+    void setIntIndices(boolean intIndices) {
+        mIntIndices = intIndices;
+        mArenaVertices = intIndices ? INT_ARENA_VERTICES : SHORT_ARENA_VERTICES;
+    }
+
+    /**
+     * @return whether arenas opened from now on use GL_UNSIGNED_INT indices.
+     * May be called from any thread.
+     */
+    boolean isIntIndices() {
+        return mIntIndices;
+    }
+
+    /**
+     * Copies a finished stroke into the current arena, opening a new arena
+     * when it does not have room left. Strokes longer than an arena are split
+     * into overlapping chunks, each culled on its own bounds.
+     *
+     * @return - The first chunk of the stroke; further chunks follow through
+     * {@link Stroke#nextChunk}.
+     */
+    public Stroke add(TriLine line) {
+        int vertexCount = line.getVertexCount();
+        FloatBuffer coords = line.triLineCoords;
+
+        Stroke first = null;
+        Stroke previous = null;
+        int start = 0;
+        do {
+            int chunk = Math.min(vertexCount - start, mArenaVertices);
+            Arena arena = mArenas.isEmpty() ? null : mArenas.get(mArenas.size() - 1);
+            if (arena == null || !arena.fits(chunk)) {
+                arena = new Arena(mArenaVertices, mIntIndices);
+                mArenas.add(arena);
+            }
+            Stroke stroke = arena.append(this, coords, start, chunk, line.color);
+            stroke.bounds = chunk == vertexCount
+                    ? line.getBounds() : TriLine.computeBounds(coords, start, chunk);
+            mGrid.add(stroke);
+
+            if (previous == null) {
+                first = stroke;
+            } else {
+                previous.nextChunk = stroke;
+            }
+            previous = stroke;
+            start += chunk - CHUNK_OVERLAP;
+        } while (start + CHUNK_OVERLAP < vertexCount);
+
+        return first;
+    }
+
+    /**
+     * Hides or shows every chunk of a stroke without touching its geometry.
+     *
+     * @param first - The stroke as returned by {@link #add}.
+     */
+    public void setHidden(Stroke first, boolean hidden) {
+        for (Stroke chunk = first; chunk != null; chunk = chunk.nextChunk) {
+            chunk.hidden = hidden;
+        }
+    }
+
+    /**
+     * Forgets a stroke for good. Chunks at the end of their arena are
+     * rewound so the next stroke reuses their space; any others stay in the
+     * arena, hidden, until the store is cleared.
+     *
+     * @param first - The stroke as returned by {@link #add}.
+     */
+    public void remove(Stroke first) {
+        ArrayList<Stroke> chunks = new ArrayList<Stroke>();
+        for (Stroke chunk = first; chunk != null; chunk = chunk.nextChunk) {
+            chunks.add(chunk);
+        }
+        // last chunk first, so a stroke spanning arenas unwinds in order
+        for (int i = chunks.size() - 1; i >= 0; i--) {
+            Stroke chunk = chunks.get(i);
+            chunk.hidden = true;
+            mGrid.remove(chunk);
+            chunk.arena.rewind(chunk);
+        }
+    }
+
+    /**
+     * Removes every stroke and deletes the arenas' buffer objects. Must be
+     * called on the GL thread.
+     */
+    public void clear() {
+        for (int i = 0; i < mArenas.size(); i++) {
+            mArenas.get(i).deleteBuffers();
+        }
+        mArenas.clear();
+        mGrid.clear();
+    }
+
+    /**
+     * Drops every stroke and takes over the strokes of loaded instead,
+     * leaving loaded empty. Loaded's arenas are uploaded whole by the next
+     * {@link #draw}. Must be called on the GL thread.
+     *
+     * @param loaded - A store filled with {@link #add} that was never drawn.
+     */
+    public void replaceWith(StrokeStore loaded) {
+        clear();
+        mArenas.addAll(loaded.mArenas);
+        mGrid = loaded.mGrid;
+        loaded.mArenas.clear();
+        loaded.mGrid = new StrokeGrid(0.25f);
+    }
+
+    /**
+     * Draws every stroke that intersects the view frustum, merging runs of
+     * visible strokes within an arena into one draw call.
+     *
+     * @param mvpMatrix - The Model View Project matrix in which to draw.
+     */
+    public void draw(float[] mvpMatrix) {
+        mDrawCalls = 0;
+        mDrawnVertices = 0;
+        mVisibleStrokes = 0;
+        if (mArenas.isEmpty()) {
+            return;
+        }
+
+        mFrame++;
+        mFrustum.set(mvpMatrix);
+        mVisibleStrokes = mGrid.markVisible(mFrustum, mFrame);
+        if (mVisibleStrokes == 0) {
+            return;
+        }
+
+        GLES20.glUseProgram(mProgram);
+        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mvpMatrix, 0);
+        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        GLES20.glEnableVertexAttribArray(mColorHandle);
+
+        for (int i = 0; i < mArenas.size(); i++) {
+            mArenas.get(i).draw(this);
+        }
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        GLES20.glDisableVertexAttribArray(mPositionHandle);
+        GLES20.glDisableVertexAttribArray(mColorHandle);
+        MyGLRenderer.checkGlError("glDrawElements");
+    }
+
+    /**
+     * @return the number of draw calls issued by the last {@link #draw}.
+     */
+    public int getDrawCallCount() {
+        return mDrawCalls;
+    }
+
+    /**
+     * @return the number of indices, and so vertices, submitted by the last {@link #draw}.
+     */
+    public int getDrawnVertexCount() {
+        return mDrawnVertices;
+    }
+
+    /**
+     * @return the number of strokes that passed culling in the last {@link #draw}.
+     */
+    public int getVisibleStrokeCount() {
+        return mVisibleStrokes;
+    }
+
+    /**
+     * @return the number of arenas opened so far.
+     */
+    int getArenaCount() {
+        return mArenas.size();
+    }
+
+    /**
+     * @return the position of a chunk's arena in the order arenas were
+     * opened.
+     */
+    int getArenaIndex(Stroke chunk) {
+        return mArenas.indexOf(chunk.arena);
+    }
+
+    /**
+     * @return coordinate c of the vertex at position vertex of a chunk's
+     * arena, as staged for the GPU.
+     */
+    float getCoordinate(Stroke chunk, int vertex, int c) {
+        return chunk.arena.vertexBuffer.get(vertex * FLOATS_PER_VERTEX + c);
+    }
+
+    /**
+     * @return the vertex index at position i of a chunk's arena index
+     * buffer, as staged for the GPU.
+     */
+    int getIndex(Stroke chunk, int i) {
+        return chunk.arena.getIndex(i);
+    }
+
+    /**
+     * Where a stroke, or one chunk of a long stroke, sits in its arena, and
+     * whether it was in view.
+     */
+    static class Stroke {
+        final Arena arena;
+        final int firstIndex;
+        final int indexCount;
+        final int firstVertex;
+        // indices in the arena before this stroke, including its join
+        final int startIndex;
+        float[] bounds;
+        Stroke nextChunk;
+        boolean hidden;
+        int testedFrame;
+        int visibleFrame;
+
+        Stroke(Arena arena, int firstIndex, int indexCount, int firstVertex, int startIndex) {
+            this.arena = arena;
+            this.firstIndex = firstIndex;
+            this.indexCount = indexCount;
+            this.firstVertex = firstVertex;
+            this.startIndex = startIndex;
+        }
+    }
+
+    /**
+     * One interleaved vertex buffer and its index buffer. The direct buffers
+     * stage geometry on the CPU side until it is copied into the buffer
+     * objects, and are kept so the arena can be restored after context loss.
+     */
+    private static class Arena {
+        private final int capacity;
+        private final int indexCapacity;
+        private final int indexType;
+        private final int indexSize;
+        private final FloatBuffer vertexBuffer;
+        private final ByteBuffer drawListBuffer;
+        private int vertexCount;
+        private int indexCount;
+        private final ArrayList<Stroke> strokes = new ArrayList<Stroke>();
+
+        private final int[] buffers = new int[2];
+        private int uploadedVertices;
+        private int uploadedIndices;
+
+        Arena(int capacity, boolean intIndices) {
+            this.capacity = capacity;
+            // a strip needs one index per vertex plus two to join it to the previous one
+            indexCapacity = capacity * 2;
+            indexType = intIndices ? GLES20.GL_UNSIGNED_INT : GLES20.GL_UNSIGNED_SHORT;
+            indexSize = intIndices ? 4 : 2;
+
+            ByteBuffer bb = ByteBuffer.allocateDirect(capacity * VERTEX_STRIDE);
+            bb.order(ByteOrder.nativeOrder());
+            vertexBuffer = bb.asFloatBuffer();
+
+            drawListBuffer = ByteBuffer.allocateDirect(indexCapacity * indexSize);
+            drawListBuffer.order(ByteOrder.nativeOrder());
+        }
+
+        boolean fits(int vertices) {
+            return vertexCount + vertices <= capacity
+                    && indexCount + vertices + 2 <= indexCapacity;
+        }
+
+        /**
+         * Appends vertices [first, first + vertices) of a strip, interleaved
+         * with color in store's staging arrays so both copies are bulk.
+         */
+        Stroke append(StrokeStore store, FloatBuffer coords, int first, int vertices,
+                float[] color) {
+            FloatBuffer source = coords.duplicate();
+            source.position(first * COORDS_PER_VERTEX);
+            vertexBuffer.position(vertexCount * FLOATS_PER_VERTEX);
+            float[] staged = store.mStagingCoords;
+            float[] interleaved = store.mStagingVertices;
+            for (int done = 0; done < vertices; done += STAGING_VERTICES) {
+                int count = Math.min(STAGING_VERTICES, vertices - done);
+                source.get(staged, 0, count * COORDS_PER_VERTEX);
+                for (int i = 0; i < count; i++) {
+                    int c = i * COORDS_PER_VERTEX;
+                    int v = i * FLOATS_PER_VERTEX;
+                    interleaved[v] = staged[c];
+                    interleaved[v + 1] = staged[c + 1];
+                    interleaved[v + 2] = staged[c + 2];
+                    interleaved[v + 3] = color[0];
+                    interleaved[v + 4] = color[1];
+                    interleaved[v + 5] = color[2];
+                    interleaved[v + 6] = color[3];
+                }
+                vertexBuffer.put(interleaved, 0, count * FLOATS_PER_VERTEX);
+            }
+
+            // the strip is sequential, shifted past the vertices already here
+            int startIndex = indexCount;
+            if (indexCount > 0 && vertices > 0) {
+                putIndex(indexCount, getIndex(indexCount - 1));
+                putIndex(indexCount + 1, vertexCount);
+                indexCount += 2;
+            }
+            for (int i = 0; i < vertices; i++) {
+                putIndex(indexCount + i, vertexCount + i);
+            }
+
+            Stroke stroke = new Stroke(this, indexCount, vertices, vertexCount, startIndex);
+            strokes.add(stroke);
+            vertexCount += vertices;
+            indexCount += vertices;
+            return stroke;
+        }
+
+        private void putIndex(int position, int index) {
+            if (indexSize == 4) {
+                drawListBuffer.putInt(position * 4, index);
+            } else {
+                // stored as the low 16 bits, read back unsigned by GL
+                drawListBuffer.putShort(position * 2, (short) index);
+            }
+        }
+
+        private int getIndex(int position) {
+            if (indexSize == 4) {
+                return drawListBuffer.getInt(position * 4);
+            }
+            return drawListBuffer.getShort(position * 2) & 0xffff;
+        }
+
+        /**
+         * Drops stroke if nothing was appended after it, so its vertices and
+         * indices are overwritten by the next append.
+         */
+        void rewind(Stroke stroke) {
+            if (strokes.isEmpty() || strokes.get(strokes.size() - 1) != stroke) {
+                return;
+            }
+            strokes.remove(strokes.size() - 1);
+            vertexCount = stroke.firstVertex;
+            indexCount = stroke.startIndex;
+            uploadedVertices = Math.min(uploadedVertices, vertexCount);
+            uploadedIndices = Math.min(uploadedIndices, indexCount);
+        }
+
+        void deleteBuffers() {
+            if (buffers[0] != 0) {
+                GLES20.glDeleteBuffers(2, buffers, 0);
+            }
+            releaseBuffers();
+        }
+
+        void releaseBuffers() {
+            buffers[0] = 0;
+            buffers[1] = 0;
+            uploadedVertices = 0;
+            uploadedIndices = 0;
+        }
+
+        /**
+         * Copies whatever was appended since the last frame to the GPU.
+         */
+        private void upload() {
+            if (buffers[0] == 0) {
+                // reserve the whole arena once, later strokes only fill it in
+                GLES20.glGenBuffers(2, buffers, 0);
+                GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+                GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER,
+                        capacity * VERTEX_STRIDE, null, GLES20.GL_STATIC_DRAW);
+                GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, buffers[1]);
+                GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER,
+                        indexCapacity * indexSize, null, GLES20.GL_STATIC_DRAW);
+            } else {
+                GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+                GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, buffers[1]);
+            }
+
+            if (uploadedVertices < vertexCount) {
+                int bytes = (vertexCount - uploadedVertices) * VERTEX_STRIDE;
+                vertexBuffer.position(uploadedVertices * FLOATS_PER_VERTEX);
+                GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER,
+                        uploadedVertices * VERTEX_STRIDE, bytes, vertexBuffer);
+                MyGLRenderer.countUpload(bytes);
+                uploadedVertices = vertexCount;
+            }
+            if (uploadedIndices < indexCount) {
+                int bytes = (indexCount - uploadedIndices) * indexSize;
+                drawListBuffer.position(uploadedIndices * indexSize);
+                GLES20.glBufferSubData(GLES20.GL_ELEMENT_ARRAY_BUFFER,
+                        uploadedIndices * indexSize, bytes, drawListBuffer);
+                MyGLRenderer.countUpload(bytes);
+                uploadedIndices = indexCount;
+            }
+        }
+
+        void draw(StrokeStore store) {
+            upload();
+
+            GLES20.glVertexAttribPointer(
+                    store.mPositionHandle, COORDS_PER_VERTEX,
+                    GLES20.GL_FLOAT, false,
+                    VERTEX_STRIDE, 0);
+            GLES20.glVertexAttribPointer(
+                    store.mColorHandle, COLORS_PER_VERTEX,
+                    GLES20.GL_FLOAT, false,
+                    VERTEX_STRIDE, COORDS_PER_VERTEX * 4);
+
+            // a run of visible strokes is contiguous in the index buffer,
+            // including the degenerate indices that join them
+            int runStart = -1;
+            int runEnd = 0;
+            for (int i = 0; i < strokes.size(); i++) {
+                Stroke stroke = strokes.get(i);
+                if (stroke.visibleFrame == store.mFrame) {
+                    if (runStart == -1) {
+                        runStart = stroke.firstIndex;
+                    }
+                    runEnd = stroke.firstIndex + stroke.indexCount;
+                } else if (runStart != -1) {
+                    drawRange(store, runStart, runEnd);
+                    runStart = -1;
+                }
+            }
+            if (runStart != -1) {
+                drawRange(store, runStart, runEnd);
+            }
+        }
+
+        private void drawRange(StrokeStore store, int start, int end) {
+            GLES20.glDrawElements(
+                    GLES20.GL_TRIANGLE_STRIP, end - start,
+                    indexType, start * indexSize);
+            store.mDrawCalls++;
+            store.mDrawnVertices += end - start;
+        }
+    }
+
+}
@@ -0,0 +1,328 @@
+package com.aircanvas;
+
+/**
+ * Extrudes a stroke centerline into a triangle strip of constant width.
+ * Each centerline point becomes a left/right pair of vertices, joins are
+ * filled according to {@link Join} and the ends are finished according to
+ * {@link Cap}. The output is meant for GL_TRIANGLE_STRIP, which needs about
+ * two indices per centerline point instead of the three a triangle list
+ * needs.
+ */
+public class StrokeTessellator {
+
+    public enum Join { MITER, BEVEL, ROUND }
+
+    public enum Cap { BUTT, SQUARE, ROUND }
+
+    static final int COORDS_PER_VERTEX = 3;
+
+    private float halfWidth;
+    private Join join;
+    private Cap cap;
+    private float miterLimit = 4.0f;
+    private int roundSegments = 8;
+
+    public StrokeTessellator(float width, Join join, Cap cap) {
+        this.halfWidth = width / 2;
+        this.join = join;
+        this.cap = cap;
+    }
+
+    public float getWidth() {
+        return halfWidth * 2;
+    }
+
+    public void setWidth(float width) {
+        halfWidth = width / 2;
+    }
+
+    public Join getJoin() {
+        return join;
+    }
+
+    public void setJoin(Join join) {
+        this.join = join;
+    }
+
+    public Cap getCap() {
+        return cap;
+    }
+
+    public void setCap(Cap cap) {
+        this.cap = cap;
+    }
+
+    /**
+     * Miter joins longer than this many half widths fall back to bevels.
+     */
+    public void setMiterLimit(float miterLimit) {
+        this.miterLimit = miterLimit;
+    }
+
+    /**
+     * Number of segments used for a half circle in round joins and caps.
+     */
+    public void setRoundSegments(int roundSegments) {
+        this.roundSegments = Math.max(roundSegments, 2);
+    }
+
+    /**
+     * Appends the strip for one stroke to out. Vertices alternate left and
+     * right of the centerline.
+     *
+     * @param coords - Centerline x, y, z coordinates; z is carried through.
+     * @param count - Number of centerline points.
+     * @param out - Receives x, y, z for every strip vertex.
+     * @return - The number of strip vertices appended.
+     */
+    public int tessellate(float[] coords, int count, FloatList out) {
+        int start = out.size();
+        tessellateGrowing(coords, count, new Progress(), out);
+        return (out.size() - start) / COORDS_PER_VERTEX;
+    }
+
+    /**
+     * Appends the strip of a stroke that is still being captured, carrying
+     * on from progress. Only the end of a strip depends on points still to
+     * come: the leading vertices appended, as many as returned, are the
+     * same {@link #tessellate} gives for the finished stroke, and progress
+     * moves past them. The rest, the pair at the last point and the end
+     * cap, must be dropped before the next call with more points.
+     *
+     * @param coords - Centerline x, y, z coordinates so far.
+     * @param count - Number of centerline points so far.
+     * @param progress - Where the previous call stopped, reset for a new stroke.
+     * @param out - Receives x, y, z for every strip vertex.
+     * @return - The number of appended vertices that are final.
+     */
+    public int tessellateGrowing(float[] coords, int count, Progress progress, FloatList out) {
+        int start = out.size();
+        if (count < 1) {
+            return 0;
+        }
+
+        int current = progress.point;
+        float dx = progress.dx, dy = progress.dy;
+        if (current == -1) {
+            // direction of the first segment; a single tap has none, pick one
+            dx = 1;
+            dy = 0;
+            int next = nextDistinct(coords, count, 0);
+            if (next != -1) {
+                dx = x(coords, next) - x(coords, 0);
+                dy = y(coords, next) - y(coords, 0);
+                float length = (float) Math.sqrt(dx * dx + dy * dy);
+                dx /= length;
+                dy /= length;
+            }
+
+            float px = x(coords, 0), py = y(coords, 0), pz = z(coords, 0);
+            startCap(px, py, pz, dx, dy, out);
+            float sx = cap == Cap.SQUARE ? -dx * halfWidth : 0;
+            float sy = cap == Cap.SQUARE ? -dy * halfWidth : 0;
+            pair(px + sx, py + sy, pz, -dy, dx, halfWidth, out);
+
+            if (next == -1) {
+                // a single point, close it off into a dot until the stroke moves
+                pair(px - sx, py - sy, pz, -dy, dx, halfWidth, out);
+                endCap(px, py, pz, dx, dy, out);
+                return 0;
+            }
+            current = next;
+        }
+
+        while (true) {
+            float cx = x(coords, current), cy = y(coords, current), cz = z(coords, current);
+            int next = nextDistinct(coords, count, current);
+            if (next == -1) {
+                // last point so far, finish with the end cap
+                progress.point = current;
+                progress.dx = dx;
+                progress.dy = dy;
+                int stable = (out.size() - start) / COORDS_PER_VERTEX;
+                float sx = cap == Cap.SQUARE ? dx * halfWidth : 0;
+                float sy = cap == Cap.SQUARE ? dy * halfWidth : 0;
+                pair(cx + sx, cy + sy, cz, -dy, dx, halfWidth, out);
+                endCap(cx, cy, cz, dx, dy, out);
+                return stable;
+            }
+
+            float ex = x(coords, next) - cx;
+            float ey = y(coords, next) - cy;
+            float length = (float) Math.sqrt(ex * ex + ey * ey);
+            ex /= length;
+            ey /= length;
+            join(cx, cy, cz, dx, dy, ex, ey, out);
+
+            dx = ex;
+            dy = ey;
+            current = next;
+        }
+    }
+
+    /**
+     * How far {@link #tessellateGrowing} has got along a stroke: the last
+     * point reached, whose join waits for the next distinct point, and the
+     * direction into it.
+     */
+    public static class Progress {
+        int point = -1;
+        float dx;
+        float dy;
+
+        /**
+         * Starts over, for a new stroke.
+         */
+        public void reset() {
+            point = -1;
+        }
+
+        /**
+         * Copies other, so a provisional end can be tried from it.
+         */
+        public void set(Progress other) {
+            point = other.point;
+            dx = other.dx;
+            dy = other.dy;
+        }
+    }
+
+    /**
+     * Emits the vertices at an interior point where the direction turns from
+     * (dx, dy) to (ex, ey).
+     */
+    private void join(float cx, float cy, float cz, float dx, float dy,
+            float ex, float ey, FloatList out) {
+        // averaged left normal, scaled so the offset edges meet
+        float mx = -dy - ey;
+        float my = dx + ex;
+        float mlength = (float) Math.sqrt(mx * mx + my * my);
+        float cosHalf = mlength / 2;
+        if (cosHalf < 1e-4f) {
+            // the stroke doubles back on itself, treat it as a cap and restart
+            pair(cx, cy, cz, -dy, dx, halfWidth, out);
+            endCap(cx, cy, cz, dx, dy, out);
+            startCap(cx, cy, cz, ex, ey, out);
+            pair(cx, cy, cz, -ey, ex, halfWidth, out);
+            return;
+        }
+        mx /= mlength;
+        my /= mlength;
+        float miter = Math.min(halfWidth / cosHalf, halfWidth * miterLimit);
+
+        if (join == Join.MITER && 1 / cosHalf <= miterLimit) {
+            pair(cx, cy, cz, mx, my, miter, out);
+            return;
+        }
+
+        // positive cross product turns left, so the outside of the turn is on the right
+        boolean leftTurn = dx * ey - dy * ex > 0;
+        float ix = cx + (leftTurn ? mx : -mx) * miter;
+        float iy = cy + (leftTurn ? my : -my) * miter;
+        float side = leftTurn ? -1 : 1;
+
+        // outer edge goes from the incoming normal to the outgoing normal
+        float ax = -dy * side, ay = dx * side;
+        float bx = -ey * side, by = ex * side;
+        int steps = 1;
+        if (join == Join.ROUND) {
+            float angle = (float) Math.acos(Math.max(-1, Math.min(1, ax * bx + ay * by)));
+            steps = Math.max(1, (int) Math.ceil(angle / Math.PI * roundSegments));
+        }
+        float total = (float) Math.atan2(ax * by - ay * bx, ax * bx + ay * by);
+        float base = (float) Math.atan2(ay, ax);
+        for (int i = 0; i <= steps; i++) {
+            float a = base + total * i / steps;
+            float ox = cx + (float) Math.cos(a) * halfWidth;
+            float oy = cy + (float) Math.sin(a) * halfWidth;
+            if (leftTurn) {
+                vertex(ix, iy, cz, out);
+                vertex(ox, oy, cz, out);
+            } else {
+                vertex(ox, oy, cz, out);
+                vertex(ix, iy, cz, out);
+            }
+        }
+    }
+
+    /**
+     * Round cap behind the first point, emitted as chords from the back of
+     * the cap up to (but not including) the left/right pair.
+     */
+    private void startCap(float px, float py, float pz, float dx, float dy, FloatList out) {
+        if (cap != Cap.ROUND) {
+            return;
+        }
+        int steps = roundSegments / 2;
+        for (int i = 0; i < steps; i++) {
+            double phi = Math.PI / 2 * i / steps;
+            capPair(px, py, pz, -dx, -dy, phi, true, out);
+        }
+    }
+
+    /**
+     * Round cap past the last point, emitted as chords from the left/right
+     * pair towards the tip.
+     */
+    private void endCap(float px, float py, float pz, float dx, float dy, FloatList out) {
+        if (cap != Cap.ROUND) {
+            return;
+        }
+        int steps = roundSegments / 2;
+        for (int i = steps - 1; i >= 0; i--) {
+            double phi = Math.PI / 2 * i / steps;
+            capPair(px, py, pz, dx, dy, phi, false, out);
+        }
+    }
+
+    /**
+     * Two cap points phi radians either side of the (fx, fy) axis, ordered
+     * left then right relative to the stroke direction.
+     */
+    private void capPair(float px, float py, float pz, float fx, float fy,
+            double phi, boolean backwards, FloatList out) {
+        float c = (float) Math.cos(phi) * halfWidth;
+        float s = (float) Math.sin(phi) * halfWidth;
+        // left of the stroke is left of (fx, fy) at the end, right of it at the start
+        float lx = backwards ? fy : -fy;
+        float ly = backwards ? -fx : fx;
+        vertex(px + fx * c + lx * s, py + fy * c + ly * s, pz, out);
+        vertex(px + fx * c - lx * s, py + fy * c - ly * s, pz, out);
+    }
+
+    private static void pair(float px, float py, float pz, float nx, float ny,
+            float offset, FloatList out) {
+        vertex(px + nx * offset, py + ny * offset, pz, out);
+        vertex(px - nx * offset, py - ny * offset, pz, out);
+    }
+
+    private static void vertex(float x, float y, float z, FloatList out) {
+        out.add(x, y, z);
+    }
+
+    /**
+     * @return the index of the first point after from that does not sit on
+     * top of it, or -1 if there is none.
+     */
+    private static int nextDistinct(float[] coords, int count, int from) {
+        for (int i = from + 1; i < count; i++) {
+            if (x(coords, i) != x(coords, from) || y(coords, i) != y(coords, from)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static float x(float[] coords, int i) {
+        return coords[i * COORDS_PER_VERTEX];
+    }
+
+    private static float y(float[] coords, int i) {
+        return coords[i * COORDS_PER_VERTEX + 1];
+    }
+
+    private static float z(float[] coords, int i) {
+        return coords[i * COORDS_PER_VERTEX + 2];
+    }
+
+}
@@ -0,0 +1,155 @@
+package com.aircanvas;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed set of worker threads that run one job split into as many tiles
+ * as there are threads, the calling thread included. The caller runs tile 0
+ * itself and returns once every tile is done.
+ *
+ * Made for per-frame work on the frame processing thread: workers are
+ * parked between jobs and woken directly, so running a job allocates
+ * nothing and takes no locks. Each tile should write its results to its own
+ * slot, for the caller to merge after {@link #run} returns; the return makes
+ * every tile's writes visible to it.
+ *
+ * A job still costs a wake-up per worker, tens of microseconds on a phone,
+ * so only split work that takes much longer than that. On a device with
+ * more than one core the caller polls for a while after its own tile before
+ * parking, since the other tiles usually finish within that time and being
+ * woken again would cost as much as the tile.
+ *
+ * {@link #run} must only be called from one thread at a time.
+ */
+public class TilePool {
+
+    /**
+     * A job split into tiles.
+     */
+    public interface Task {
+        /**
+         * Does the share of the job numbered tile, of tiles.
+         */
+        void runTile(int tile, int tiles);
+    }
+
+    // polls of the unfinished tile count before the caller parks
+    private static final int SPIN_POLLS = 4096;
+
+    private final Worker[] workers;
+    private final int spinPolls;
+    private final AtomicInteger remaining = new AtomicInteger();
+    private volatile Task task;
+    private volatile Thread caller;
+    private volatile int generation;
+    private volatile boolean shutdown;
+    private volatile RuntimeException failure;
+
+    /**
+     * @param threads - Tiles per job, counting the calling thread, so
+     * threads - 1 workers are started.
+     */
+    public TilePool(int threads) {
+        workers = new Worker[Math.max(0, threads - 1)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i + 1);
+            workers[i].start();
+        }
+        // on one core polling only delays the workers it waits for
+        spinPolls = Runtime.getRuntime().availableProcessors() > 1 ? SPIN_POLLS : 0;
+    }
+
+    /**
+     * @return the number of tiles each job is split into.
+     */
+    public int getThreads() {
+        return workers.length + 1;
+    }
+
+    /**
+     * Runs every tile of task and waits for them. An exception thrown by a
+     * worker's tile is thrown here.
+     */
+    public void run(Task task) {
+        int tiles = getThreads();
+        if (tiles == 1 || shutdown) {
+            for (int tile = 0; tile < tiles; tile++) {
+                task.runTile(tile, tiles);
+            }
+            return;
+        }
+
+        this.task = task;
+        caller = Thread.currentThread();
+        failure = null;
+        remaining.set(workers.length);
+        // the volatile write publishes the task to the workers
+        generation++;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker);
+        }
+
+        task.runTile(0, tiles);
+        int polls = spinPolls;
+        while (remaining.get() != 0) {
+            if (polls > 0) {
+                polls--;
+                continue;
+            }
+            LockSupport.park(this);
+        }
+        this.task = null;
+        RuntimeException e = failure;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the workers. Must not be called while a job runs; jobs run
+     * afterwards run every tile on the calling thread.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private class Worker extends Thread {
+        private final int tile;
+        private int seen;
+
+        Worker(int tile) {
+            super("TilePool-" + tile);
+            this.tile = tile;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                int current = generation;
+                if (current == seen) {
+                    if (shutdown) {
+                        return;
+                    }
+                    LockSupport.park(this);
+                    continue;
+                }
+                seen = current;
+                try {
+                    task.runTile(tile, workers.length + 1);
+                } catch (RuntimeException e) {
+                    failure = e;
+                } finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        LockSupport.unpark(caller);
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -1,131 +1,115 @@
 package com.aircanvas;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.ShortBuffer;
-import java.util.Arrays;
-
-import android.opengl.GLES20;
-import android.util.Log;
-
 
+/**
+ * A finished stroke. The captured centerline is extruded into a triangle
+ * strip by a {@link StrokeTessellator}; triLineCoords holds the strip
+ * vertices in drawing order. The line holds no GL state: it is drawn from
+ * the arenas of a {@link StrokeStore}, which splits it into chunks when it
+ * has more vertices than one arena can index.
+ *
+ * The coordinates are buffers so a line read from a {@link CanvasFile} can
+ * keep views on the file's mapping. They are never written after the line
+ * is made and are read with absolute gets, or through a duplicate, so one
+ * line may be read on several threads at once.
+ */
 public class TriLine {
 
-    private final String vertexShaderCode =
-            "uniform mat4 uMVPMatrix;" +
-            "attribute vec4 vPosition;" +
-            "void main() {" +
-            "  gl_Position = uMVPMatrix * vPosition;" +
-            "}";
-
-    private final String fragmentShaderCode =
-            "precision mediump float;" +
-            "uniform vec4 vColor;" +
-            "void main() {" +
-            "  gl_FragColor = vColor;" +
-            "}";
-
-    private final FloatBuffer vertexBuffer;
-    private final ShortBuffer drawListBuffer;
-    private final int mProgram;
-    private int mPositionHandle;
-    private int mColorHandle;
-    private int mMVPMatrixHandle;
-
     static final int COORDS_PER_VERTEX = 3;
-    float[] triLineCoords;
-    private short[] drawOrder;
-    
-    private final int vertexStride = COORDS_PER_VERTEX * 4; // 4 bytes per vertex
+    final FloatBuffer centerline;
+    final FloatBuffer triLineCoords;
+    // minX, minY, minZ, maxX, maxY, maxZ of the tessellated strip
+    private final float[] bounds;
+    private final int vertexCount;
 
     float color[] = { 0.2f, 0.709803922f, 0.898039216f, 1.0f };
 
     /**
-     * Sets up the drawing object data for use in an OpenGL ES context.
+     * Tessellates a captured centerline into the line's triangle strip.
+     *
+     * @param coords - Centerline x, y, z coordinates; only the first
+     * countVertices points are read.
+     * @param countVertices - Number of centerline points.
+     * @param tessellator - Turns the centerline into a triangle strip.
      */
-    public TriLine(float[] coords, int countVertices) {
-        triLineCoords = coords.clone();
-        Log.i("999999",""+countVertices);
-        drawOrder = new short[countVertices*3 - 6];
-        short v1 = 1;
-        short v2 = 2;
-        for (short i = 0; i < (countVertices-2); i+=1) {
-			drawOrder[i*3 ] = i;
-			drawOrder[i*3 + 1] = (short) (i + 1);
-			drawOrder[i*3 + 2] = (short) (i + 2);        	
-        }
-        Log.i("999999",Arrays.toString(drawOrder));
-
-        // initialize vertex byte buffer for shape coordinates
-        ByteBuffer bb = ByteBuffer.allocateDirect(
-        // (# of coordinate values * 4 bytes per float)
-                triLineCoords.length * 4);
-        bb.order(ByteOrder.nativeOrder());
-        vertexBuffer = bb.asFloatBuffer();
-        vertexBuffer.put(coords);
-        vertexBuffer.position(0);
-
-        // initialize byte buffer for the draw list
-        ByteBuffer dlb = ByteBuffer.allocateDirect(
-                // (# of coordinate values * 2 bytes per short)
-                drawOrder.length * 2);
-        dlb.order(ByteOrder.nativeOrder());
-        drawListBuffer = dlb.asShortBuffer();
-        drawListBuffer.put(drawOrder);
-        drawListBuffer.position(0);
-
-        // prepare shaders and OpenGL program
-        int vertexShader = MyGLRenderer.loadShader(
-                GLES20.GL_VERTEX_SHADER,
-                vertexShaderCode);
-        int fragmentShader = MyGLRenderer.loadShader(
-                GLES20.GL_FRAGMENT_SHADER,
-                fragmentShaderCode);
-
-        mProgram = GLES20.glCreateProgram();             // create empty OpenGL Program
-        GLES20.glAttachShader(mProgram, vertexShader);   // add the vertex shader to program
-        GLES20.glAttachShader(mProgram, fragmentShader); // add the fragment shader to program
-        GLES20.glLinkProgram(mProgram);                  // create OpenGL program executables
+    public TriLine(float[] coords, int countVertices, StrokeTessellator tessellator) {
+        float[] points = new float[countVertices * COORDS_PER_VERTEX];
+        System.arraycopy(coords, 0, points, 0, points.length);
+        centerline = FloatBuffer.wrap(points);
+        FloatList strip = new FloatList(countVertices * 2 * COORDS_PER_VERTEX);
+        vertexCount = tessellator.tessellate(coords, countVertices, strip);
+        triLineCoords = FloatBuffer.wrap(strip.toArray(), 0, vertexCount * COORDS_PER_VERTEX);
+
+        bounds = computeBounds(triLineCoords, 0, vertexCount);
     }
 
-    public void draw(float[] mvpMatrix) {
-        // Add program to OpenGL environment
-        GLES20.glUseProgram(mProgram);
-
-        // get handle to vertex shader's vPosition member
-        mPositionHandle = GLES20.glGetAttribLocation(mProgram, "vPosition");
-
-        // Enable a handle to the triangle vertices
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
-
-        // Prepare the triangle coordinate data
-        GLES20.glVertexAttribPointer(
-                mPositionHandle, COORDS_PER_VERTEX,
-                GLES20.GL_FLOAT, false,
-                vertexStride, vertexBuffer);
+    /**
+     * Restores a line that was already tessellated, as read back by
+     * {@link StrokeJournal}. The arrays are kept, not copied.
+     *
+     * @param centerline - Centerline x, y, z coordinates.
+     * @param strip - Triangle strip x, y, z coordinates.
+     * @param color - RGBA color.
+     * @param bounds - minX, minY, minZ, maxX, maxY, maxZ of the strip.
+     */
+    TriLine(float[] centerline, float[] strip, float[] color, float[] bounds) {
+        this(FloatBuffer.wrap(centerline), FloatBuffer.wrap(strip), color, bounds);
+    }
 
-        // get handle to fragment shader's vColor member
-        mColorHandle = GLES20.glGetUniformLocation(mProgram, "vColor");
+    /**
+     * Restores a line from buffers of x, y, z coordinates holding exactly
+     * its points and strip, such as views on a {@link CanvasFile} mapping.
+     * The buffers are kept, not copied, and must not change afterwards.
+     */
+    TriLine(FloatBuffer centerline, FloatBuffer strip, float[] color, float[] bounds) {
+        this.centerline = centerline;
+        this.triLineCoords = strip;
+        this.vertexCount = strip.limit() / COORDS_PER_VERTEX;
+        this.color = color;
+        this.bounds = bounds;
+    }
 
-        // Set color for drawing the triangle
-        GLES20.glUniform4fv(mColorHandle, 1, color, 0);
+    public int getVertexCount() {
+        return vertexCount;
+    }
 
-        // get handle to shape's transformation matrix
-        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
-        MyGLRenderer.checkGlError("glGetUniformLocation");
+    /**
+     * @return the number of captured centerline points.
+     */
+    public int getPointCount() {
+        return centerline.limit() / COORDS_PER_VERTEX;
+    }
 
-        // Apply the projection and view transformation
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mvpMatrix, 0);
-        MyGLRenderer.checkGlError("glUniformMatrix4fv");
+    /**
+     * @return minX, minY, minZ, maxX, maxY, maxZ of the line, including its width.
+     */
+    public float[] getBounds() {
+        return bounds;
+    }
 
-        // Draw the line
-        GLES20.glDrawElements(
-                GLES20.GL_TRIANGLES, drawOrder.length,
-                GLES20.GL_UNSIGNED_SHORT, drawListBuffer);
+    /**
+     * @return minX, minY, minZ, maxX, maxY, maxZ of vertices [first, first + count).
+     */
+    static float[] computeBounds(float[] coords, int first, int count) {
+        return computeBounds(FloatBuffer.wrap(coords), first, count);
+    }
 
-        // Disable vertex array
-        GLES20.glDisableVertexAttribArray(mPositionHandle);
+    /**
+     * @return minX, minY, minZ, maxX, maxY, maxZ of vertices [first, first + count).
+     */
+    static float[] computeBounds(FloatBuffer coords, int first, int count) {
+        float[] b = {
+                Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+                -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+        for (int i = first; i < first + count; i++) {
+            for (int c = 0; c < COORDS_PER_VERTEX; c++) {
+                float v = coords.get(i * COORDS_PER_VERTEX + c);
+                b[c] = Math.min(b[c], v);
+                b[c + 3] = Math.max(b[c + 3], v);
+            }
+        }
+        return b;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,114 @@
+package com.aircanvas;
+
+import java.util.ArrayDeque;
+
+/**
+ * Undo and redo stacks of committed strokes. Undo hides a stroke's chunks
+ * in the {@link StrokeStore} and redo shows them again, so neither
+ * tessellates nor uploads anything. Committing a new stroke drops whatever
+ * could still be redone, handing its arena space back where possible.
+ *
+ * At most {@link #setDepth depth} strokes can be undone; older entries are
+ * evicted and their strokes become permanent. Must be used on the GL
+ * thread, except for {@link #setDepth}.
+ */
+class UndoHistory {
+
+    private static class Entry {
+        final TriLine line;
+        final StrokeStore.Stroke stroke;
+
+        Entry(TriLine line, StrokeStore.Stroke stroke) {
+            this.line = line;
+            this.stroke = stroke;
+        }
+    }
+
+    private final StrokeStore mStore;
+    private final ArrayDeque<Entry> mUndo = new ArrayDeque<Entry>();
+    // the first entry is the most recently committed stroke
+    private final ArrayDeque<Entry> mRedo = new ArrayDeque<Entry>();
+    private volatile int mDepth;
+
+    UndoHistory(StrokeStore store, int depth) {
+        mStore = store;
+        mDepth = depth;
+    }
+
+    /**
+     * Sets how many strokes can be undone. Takes effect with the next
+     * committed stroke. May be called from any thread.
+     */
+    void setDepth(int depth) {
+        mDepth = depth;
+    }
+
+    /**
+     * Adds a newly committed stroke to the store and records it. Strokes
+     * that could still be redone are dropped first, so their space at the
+     * end of the arena is reused.
+     *
+     * @return - The stroke as returned by {@link StrokeStore#add}.
+     */
+    StrokeStore.Stroke add(TriLine line) {
+        // latest first, so each removal can rewind the tail of its arena
+        for (Entry entry : mRedo) {
+            mStore.remove(entry.stroke);
+        }
+        mRedo.clear();
+
+        StrokeStore.Stroke stroke = mStore.add(line);
+        mUndo.addLast(new Entry(line, stroke));
+        while (mUndo.size() > Math.max(mDepth, 0)) {
+            mUndo.removeFirst();
+        }
+        return stroke;
+    }
+
+    /**
+     * Hides the most recent stroke.
+     *
+     * @return - The stroke undone, or null if there is nothing to undo.
+     */
+    TriLine undo() {
+        Entry entry = mUndo.pollLast();
+        if (entry == null) {
+            return null;
+        }
+        mStore.setHidden(entry.stroke, true);
+        mRedo.addLast(entry);
+        return entry.line;
+    }
+
+    /**
+     * Shows the most recently undone stroke again.
+     *
+     * @return - The stroke redone, or null if there is nothing to redo.
+     */
+    TriLine redo() {
+        Entry entry = mRedo.pollLast();
+        if (entry == null) {
+            return null;
+        }
+        mStore.setHidden(entry.stroke, false);
+        mUndo.addLast(entry);
+        return entry.line;
+    }
+
+    int getUndoCount() {
+        return mUndo.size();
+    }
+
+    int getRedoCount() {
+        return mRedo.size();
+    }
+
+    /**
+     * Forgets every entry, for when the store itself is cleared.
+     */
+    void clear() {
+        mUndo.clear();
+        mRedo.clear();
+    }
+
+}
@@ -3,11 +3,21 @@ package com.aircanvas;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
+import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
+import android.os.Build;
 import android.os.Bundle;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.Window;
 import android.widget.FrameLayout;
+import android.widget.Toast;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -21,11 +31,38 @@ import java.util.List;
  */
 public class VideoActivity extends Activity implements Camera.PreviewCallback {
 
+	private static final String TAG = "VideoActivity";
+
 	// camera and display objects
 	private Camera mCamera;
 	private CameraPreview mPreview;
 
 	private MyGLSurfaceView mDraw;
+	// every committed stroke is journaled here as it is drawn
+	private StrokeJournal mJournal;
+	// exported images are this many times the size of the view
+	private static final int EXPORT_SCALE = 4;
+	// draw the camera image with OpenGL behind the strokes rather than as a second surface
+	private static final boolean CAMERA_TEXTURE =
+			Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1;
+
+	// finds the drawing marker in preview frames, created with the camera
+	private MarkerTracker mTracker;
+	// runs the tracker off the UI thread, where preview frames are delivered
+	private FrameProcessor mProcessor;
+	private static final int TRACKER_LOG_FRAMES = 300;
+	// with a camera texture the tracker reads frames the GPU reduced by this much each way
+	private static final int GPU_BLOCK = 4;
+	// steps the preview size and frame rate to keep tracking within its budget per frame
+	private PreviewGovernor mGovernor;
+	private static final long TRACKING_BUDGET_NANOS = 8000000L;
+	// larger previews are not worth processing
+	private static final int MAX_PREVIEW_PIXELS = 1280 * 720;
+	// splits full frame scans over cores, leaving one for the UI and GL threads
+	private TilePool mTilePool;
+	private static final int MAX_TRACKING_THREADS = 4;
+	// the marker color last calibrated, kept for the trackers made after it
+	private volatile ColorTable mColorTable;
 	// Android image data used for displaying the results
 
 	// if true the input image is flipped horizontally
@@ -40,32 +77,57 @@ public class VideoActivity extends Activity implements Camera.PreviewCallback {
 		setContentView(R.layout.activity_main);
 
 		// Used to visualize the results
-		mDraw = new MyGLSurfaceView(this);
+		mDraw = new MyGLSurfaceView(this, CAMERA_TEXTURE);
 
 		// Create our Preview view and set it as the content of our activity.
-		mPreview = new CameraPreview(this,this,false);
+		// with a camera texture the tracker is fed from the GPU, not from preview callbacks
+		mPreview = new CameraPreview(this, CAMERA_TEXTURE ? null : this, false);
+		if (CAMERA_TEXTURE) {
+			mPreview.setTextureMode();
+			mDraw.setOnCameraTextureListener(new MyGLSurfaceView.CameraTextureListener() {
+				@Override
+				public void onCameraTexture(SurfaceTexture texture) {
+					mPreview.setPreviewTexture(texture);
+				}
+			});
+		}
 
 		FrameLayout preview = (FrameLayout) findViewById(R.id.camera_preview);
 
 		preview.addView(mDraw);
 		preview.addView(mPreview);
-		
+
+		mJournal = new StrokeJournal(new File(getFilesDir(), "canvas.acv"),
+				new File(getFilesDir(), "canvas.journal"));
+		mDraw.openCanvas(mJournal);
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		mTilePool = new TilePool(Math.max(1, Math.min(MAX_TRACKING_THREADS, cores - 1)));
 	}
 
 	@Override
 	protected void onResume() {
 		super.onResume();
+		mDraw.onResume();
 		setUpAndConfigureCamera();
 	}
 
 	@Override
 	protected void onPause() {
 		super.onPause();
+		mDraw.onPause();
+		// make the strokes journaled so far durable now rather than after the group commit window
+		mJournal.flush();
 
 		// stop the camera preview and all processing
+		stopTracking();
+		if (CAMERA_TEXTURE) {
+			// the texture went with the GL context, a new one comes with the next
+			mPreview.setPreviewTexture(null);
+		}
 		if (mCamera != null){
 			mPreview.setCamera(null);
-			mCamera.setPreviewCallback(null);
+			mCamera.setPreviewCallbackWithBuffer(null);
 			mCamera.stopPreview();
 			mCamera.release();
 			mCamera = null;
@@ -73,6 +135,110 @@ public class VideoActivity extends Activity implements Camera.PreviewCallback {
 		}
 	}
 
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		mJournal.close();
+		mDraw.release();
+		// tracking stopped in onPause, so no scan is using the pool
+		mTilePool.shutdown();
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		getMenuInflater().inflate(R.menu.main, menu);
+		return true;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		switch (item.getItemId()) {
+			case R.id.action_undo:
+				mDraw.undo();
+				return true;
+			case R.id.action_redo:
+				mDraw.redo();
+				return true;
+			case R.id.action_export:
+				exportCanvas();
+				return true;
+			case R.id.action_calibrate:
+				startCalibration();
+				return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+
+	/**
+	 * Takes the marker color from the next tap on the preview. The tracker samples the frame
+	 * and builds its color table on the processing thread.
+	 */
+	private void startCalibration() {
+		if (mTracker == null) {
+			return;
+		}
+		Toast.makeText(this, "Tap the marker", Toast.LENGTH_SHORT).show();
+		mPreview.startCalibration(new CameraPreview.CalibrationListener() {
+			@Override
+			public void onCalibrationTap(float x, float y) {
+				MarkerTracker tracker = mTracker;
+				if (tracker == null) {
+					return;
+				}
+				if (flipHorizontal) {
+					x = 1 - x;
+				}
+				tracker.calibrate(x * tracker.getWidth(), y * tracker.getHeight(),
+						new MarkerTracker.CalibrationListener() {
+					@Override
+					public void onCalibrated(ColorTable table, long buildNanos) {
+						if (table != null) {
+							mColorTable = table;
+							Log.i(TAG, "calibrated in " + buildNanos / 1000 + " us, "
+									+ Math.round(1000 * table.getCoverage()) / 10f + "% of colors pass");
+							return;
+						}
+						runOnUiThread(new Runnable() {
+							public void run() {
+								Toast.makeText(VideoActivity.this, "That color is too close to gray",
+										Toast.LENGTH_LONG).show();
+							}
+						});
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Writes the drawing to a PNG in the app's external files directory at
+	 * EXPORT_SCALE times the resolution of the screen.
+	 */
+	private void exportCanvas() {
+		File dir = getExternalFilesDir(null);
+		if (dir == null) {
+			dir = getFilesDir();
+		}
+		File file = new File(dir, "canvas-" + System.currentTimeMillis() + ".png");
+		boolean started = mDraw.exportCanvas(file,
+				mDraw.getWidth() * EXPORT_SCALE, mDraw.getHeight() * EXPORT_SCALE,
+				new CanvasExporter.Listener() {
+					@Override
+					public void onExportFinished(final File file, final boolean success) {
+						runOnUiThread(new Runnable() {
+							public void run() {
+								Toast.makeText(VideoActivity.this,
+										success ? "Saved " + file : "Export failed",
+										Toast.LENGTH_LONG).show();
+							}
+						});
+					}
+				});
+		if (!started) {
+			Toast.makeText(this, "An export is already running", Toast.LENGTH_SHORT).show();
+		}
+	}
+
 	/**
 	 * Sets up the camera if it is not already setup.
 	 */
@@ -82,18 +248,223 @@ public class VideoActivity extends Activity implements Camera.PreviewCallback {
 
 		Camera.Parameters param = mCamera.getParameters();
 
-		// Smaller images are recommended because some computer vision operations are very expensive
-		List<Camera.Size> sizes = param.getSupportedPreviewSizes();
-		Camera.Size s = sizes.get(closest(sizes,640,360));
-		param.setPreviewSize(s.width,s.height);
+		// Smaller images are recommended because some computer vision operations are very expensive.
+		// The governor starts close to 640x360 and moves from there as tracking allows.
+		if (mGovernor == null) {
+			mGovernor = createGovernor(param);
+		}
+		mGovernor.cancel();
+		PreviewGovernor.Level level = mGovernor.getLevel();
+		setPreviewLevel(param, level);
 		mCamera.setParameters(param);
 
-		// start image processing thread
+		mDraw.setCameraMirrored(flipHorizontal);
+		startTracking(level.width, level.height);
 
 		// Start the video feed by passing it to mPreview
 		mPreview.setCamera(mCamera);
 	}
 
+	/**
+	 * Starts tracking frames of the given size, on reduced frames from the GPU or on the NV21
+	 * preview frames.
+	 */
+	private void startTracking(int width, int height) {
+		final FrameDownsampler downsampler = mDraw.getFrameDownsampler();
+		final MarkerTracker tracker;
+		final int frameBytes;
+		FrameProcessor.Recycler recycler;
+		if (downsampler != null) {
+			tracker = MarkerTracker.packed(width, height, GPU_BLOCK);
+			frameBytes = (width / GPU_BLOCK) * (height / GPU_BLOCK) * 4;
+			recycler = downsampler;
+		} else {
+			tracker = new MarkerTracker(width, height);
+			frameBytes = width * height * 3 / 2;
+			final Camera camera = mCamera;
+			recycler = new FrameProcessor.Recycler() {
+				@Override
+				public void recycle(byte[] buffer) {
+					// the processor is stopped before the camera is released
+					camera.addCallbackBuffer(buffer);
+				}
+			};
+		}
+		tracker.setListener(mDraw.createMarkerListener(width, height, flipHorizontal));
+		tracker.setTilePool(mTilePool);
+		ColorTable colors = mColorTable;
+		if (colors != null) {
+			tracker.setColorTable(colors);
+		}
+		final PreviewGovernor governor = mGovernor;
+		final FrameProcessor processor = new FrameProcessor(new FrameProcessor.Consumer() {
+			@Override
+			public void onFrame(byte[] frame) {
+				if (frame.length < frameBytes) {
+					return;
+				}
+				long start = System.nanoTime();
+				tracker.process(frame);
+				long now = System.nanoTime();
+				if (tracker.getFrameCount() % TRACKER_LOG_FRAMES == 0) {
+					logTracking(tracker);
+				}
+				// the reduction on the GPU grows with the preview size, so it counts too
+				long cost = now - start;
+				if (downsampler != null) {
+					cost += downsampler.getCostNanos();
+				}
+				final int change = governor.onFrame(cost, now);
+				if (change < 0) {
+					return;
+				}
+				if (tracker.isDown()) {
+					// never cut a stroke short, ask again after the next window
+					governor.cancel();
+					return;
+				}
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						changePreviewLevel(tracker, change);
+					}
+				});
+			}
+		}, recycler);
+		mTracker = tracker;
+		mProcessor = processor;
+		processor.start();
+		if (downsampler != null) {
+			downsampler.setTarget(processor, width / GPU_BLOCK, height / GPU_BLOCK);
+		}
+	}
+
+	/**
+	 * Stops tracking; the pen is lifted if it was down.
+	 */
+	private void stopTracking() {
+		FrameDownsampler downsampler = mDraw.getFrameDownsampler();
+		if (downsampler != null) {
+			downsampler.setTarget(null, 0, 0);
+		}
+		if (mProcessor != null) {
+			// waits for the frame being tracked, so the tracker is ours again below
+			mProcessor.stop();
+			mProcessor = null;
+		}
+		if (mTracker != null) {
+			mTracker.reset();
+		}
+	}
+
+	/**
+	 * Restarts the preview and tracking at the level the governor asked for. Does nothing if
+	 * tracking has been restarted since it asked, as the request is stale.
+	 */
+	private void changePreviewLevel(MarkerTracker requestedBy, int index) {
+		if (requestedBy != mTracker || mCamera == null || mProcessor == null) {
+			return;
+		}
+		long average = mGovernor.getLastAverageNanos();
+		stopTracking();
+
+		PreviewGovernor.Level level = mGovernor.getLevel(index);
+		Camera.Parameters param = mCamera.getParameters();
+		setPreviewLevel(param, level);
+		mPreview.changeParameters(param);
+		mGovernor.setLevel(index, System.nanoTime());
+		startTracking(level.width, level.height);
+		Log.i(TAG, "preview changed to " + level + " after tracking took "
+				+ average / 1000 + " us per frame");
+	}
+
+	private static void setPreviewLevel(Camera.Parameters param, PreviewGovernor.Level level) {
+		param.setPreviewSize(level.width, level.height);
+		if (level.maxFps > 0) {
+			param.setPreviewFpsRange(level.minFps, level.maxFps);
+		}
+	}
+
+	/**
+	 * Builds the governor's ladder: the supported sizes of the same shape as the one closest
+	 * to 640x360 at the fastest frame rate range, smallest first, below them the smallest size
+	 * at each slower range.
+	 */
+	private static PreviewGovernor createGovernor(Camera.Parameters param) {
+		List<Camera.Size> sizes = param.getSupportedPreviewSizes();
+		Camera.Size start = sizes.get(closest(sizes,640,360));
+
+		// the marker maps frames onto the view by stretching, so the shape must not change
+		List<Camera.Size> ladder = new ArrayList<Camera.Size>();
+		for (Camera.Size s : sizes) {
+			boolean fits = s.width * start.height == s.height * start.width
+					&& s.width * s.height <= MAX_PREVIEW_PIXELS
+					&& (!CAMERA_TEXTURE || (s.width % GPU_BLOCK == 0 && s.height % GPU_BLOCK == 0));
+			if (fits || s == start) {
+				ladder.add(s);
+			}
+		}
+		Collections.sort(ladder, new Comparator<Camera.Size>() {
+			@Override
+			public int compare(Camera.Size a, Camera.Size b) {
+				int pa = a.width * a.height;
+				int pb = b.width * b.height;
+				return pa < pb ? -1 : pa == pb ? 0 : 1;
+			}
+		});
+
+		// frame rate ranges slowest first, the fastest ending with the highest minimum
+		List<int[]> ranges = new ArrayList<int[]>();
+		List<int[]> supported = param.getSupportedPreviewFpsRange();
+		if (supported != null) {
+			ranges.addAll(supported);
+		}
+		Collections.sort(ranges, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				int max = Camera.Parameters.PREVIEW_FPS_MAX_INDEX;
+				int min = Camera.Parameters.PREVIEW_FPS_MIN_INDEX;
+				if (a[max] != b[max]) {
+					return a[max] < b[max] ? -1 : 1;
+				}
+				return a[min] < b[min] ? -1 : a[min] == b[min] ? 0 : 1;
+			}
+		});
+
+		List<PreviewGovernor.Level> levels = new ArrayList<PreviewGovernor.Level>();
+		int minFps = 0;
+		int maxFps = 0;
+		if (!ranges.isEmpty()) {
+			int[] fastest = ranges.get(ranges.size() - 1);
+			minFps = fastest[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+			maxFps = fastest[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+			Camera.Size smallest = ladder.get(0);
+			for (int[] range : ranges) {
+				int max = range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+				if (max >= maxFps) {
+					break;
+				}
+				PreviewGovernor.Level slower = new PreviewGovernor.Level(smallest.width,
+						smallest.height, range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX], max);
+				// one level per maximum, with the highest minimum, which is listed last
+				int last = levels.size() - 1;
+				if (last >= 0 && levels.get(last).maxFps == max) {
+					levels.set(last, slower);
+				} else {
+					levels.add(slower);
+				}
+			}
+		}
+		int startLevel = 0;
+		for (Camera.Size s : ladder) {
+			if (s == start) {
+				startLevel = levels.size();
+			}
+			levels.add(new PreviewGovernor.Level(s.width, s.height, minFps, maxFps));
+		}
+		return new PreviewGovernor(levels, startLevel, TRACKING_BUDGET_NANOS);
+	}
+
 	/**
 	 * Step through the camera list and select a camera.  It is also possible that there is no camera.
 	 * The camera hardware requirement in AndroidManifest.xml was turned off so that devices with just
@@ -168,11 +539,44 @@ public class VideoActivity extends Activity implements Camera.PreviewCallback {
 	}
 
 	/**
-	 * Called each time a new image arrives in the data stream.
+	 * Called each time a new image arrives in the data stream. The frame is one of the preview
+	 * buffers and goes back to the camera once the processor is done with it or drops it.
 	 */
 	@Override
 	public void onPreviewFrame(byte[] bytes, Camera camera) {
+		FrameProcessor processor = mProcessor;
+		if (bytes == null) {
+			return;
+		}
+		if (processor == null) {
+			camera.addCallbackBuffer(bytes);
+			return;
+		}
+		processor.offer(bytes);
+	}
 
+	/**
+	 * Logs the tracker's costs. Called on the processing thread.
+	 */
+	private void logTracking(MarkerTracker tracker) {
+		FrameProcessor processor = mProcessor;
+		if (processor == null) {
+			return;
+		}
+		String source = "";
+		FrameDownsampler downsampler = mDraw.getFrameDownsampler();
+		if (downsampler != null) {
+			source = ", reduced on the GPU: " + downsampler.getReducedCount() + " read back, "
+					+ downsampler.getSkippedCount() + " skipped, "
+					+ downsampler.getCostNanos() / 1000 + " us per image";
+		}
+		Log.i(TAG, "tracking " + tracker.getWidth() + "x" + tracker.getHeight() + " in "
+				+ tracker.getAverageNanos() / 1000 + " us per frame, "
+				+ Math.round(100 * tracker.getScannedFraction()) + "% scanned, "
+				+ tracker.getFullScanCount() + " full scans, "
+				+ processor.getProcessedCount() + " processed, "
+				+ processor.getDroppedCount() + " dropped of " + processor.getOfferedCount()
+				+ source);
 	}
 
 }
@@ -0,0 +1,133 @@
+package com.aircanvas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Pass and fail boundaries of tables made by {@link ColorTable#fromRange}
+ * and {@link ColorTable#fromSamples}.
+ */
+public class ColorTableTest {
+
+    // the tracker's default marker color
+    private static final ColorTable RANGE = ColorTable.fromRange(0, 135, 165, 255, 40);
+
+    private static final int MARKER_Y = 150;
+    private static final int MARKER_U = 90;
+    private static final int MARKER_V = 200;
+
+    /**
+     * Samples of a marker patch: the given color give or take a little.
+     */
+    private static int[] samples(int y, int u, int v, int count) {
+        int[] samples = new int[3 * count];
+        for (int i = 0; i < count; i++) {
+            int d = i % 3 - 1;
+            samples[3 * i] = y + 2 * d;
+            samples[3 * i + 1] = u - d;
+            samples[3 * i + 2] = v + d;
+        }
+        return samples;
+    }
+
+    @Test
+    public void rangeBoundariesAreExact() {
+        // 165 is not a multiple of 8, so the old 5-bit table tested it as 168
+        assertFalse(RANGE.contains(100, 100, 164));
+        assertTrue(RANGE.contains(100, 100, 165));
+        assertTrue(RANGE.contains(100, 100, 166));
+        assertTrue(RANGE.contains(100, 100, 255));
+
+        assertTrue(RANGE.contains(100, 0, 200));
+        assertTrue(RANGE.contains(100, 135, 200));
+        assertFalse(RANGE.contains(100, 136, 200));
+
+        assertFalse(RANGE.contains(39, 100, 200));
+        assertTrue(RANGE.contains(40, 100, 200));
+        assertTrue(RANGE.contains(255, 100, 200));
+    }
+
+    @Test
+    public void rangeChromaAndVIgnoreLuma() {
+        assertFalse(RANGE.containsV(164));
+        assertTrue(RANGE.containsV(165));
+        assertTrue(RANGE.containsChroma(135, 165));
+        assertFalse(RANGE.containsChroma(136, 165));
+        assertFalse(RANGE.containsChroma(135, 164));
+        // dark, so fails, but its chroma passes
+        assertFalse(RANGE.contains(0, 135, 165));
+    }
+
+    @Test
+    public void emptyRangePassesNothing() {
+        ColorTable empty = ColorTable.fromRange(100, 99, 0, 255, 0);
+        for (int c = 0; c < 256; c++) {
+            assertFalse(empty.containsV(c));
+            assertFalse(empty.contains(c, c, c));
+        }
+        assertEquals(0, empty.getCoverage(), 0);
+    }
+
+    @Test
+    public void rangeCoverageCountsColors() {
+        assertEquals(136f * 91 * 216 / (1 << 24), RANGE.getCoverage(), 1e-6f);
+        assertEquals(1, ColorTable.fromRange(0, 255, 0, 255, 0).getCoverage(), 0);
+    }
+
+    @Test
+    public void samplesPassNearTheirMean() {
+        ColorTable table = ColorTable.fromSamples(samples(MARKER_Y, MARKER_U, MARKER_V, 49), 49);
+        assertNotNull(table);
+        assertTrue(table.contains(MARKER_Y, MARKER_U, MARKER_V));
+        assertTrue(table.contains(MARKER_Y + 40, MARKER_U + 3, MARKER_V - 3));
+        // darker, as in shade
+        assertTrue(table.contains(MARKER_Y / 2 + 10, MARKER_U, MARKER_V));
+        assertTrue(table.getCoverage() > 0);
+        assertTrue(table.getCoverage() < 0.01f);
+    }
+
+    @Test
+    public void samplesFailFarFromTheirMean() {
+        ColorTable table = ColorTable.fromSamples(samples(MARKER_Y, MARKER_U, MARKER_V, 49), 49);
+        // gray, the background
+        assertFalse(table.contains(MARKER_Y, 128, 128));
+        assertFalse(table.containsChroma(128, 128));
+        // beyond the chroma ellipse in either direction
+        assertFalse(table.contains(MARKER_Y, MARKER_U + 32, MARKER_V));
+        assertFalse(table.contains(MARKER_Y, MARKER_U, MARKER_V - 32));
+        // well below the luma floor of half the mean
+        assertFalse(table.contains(MARKER_Y / 2 - 20, MARKER_U, MARKER_V));
+    }
+
+    @Test
+    public void graySamplesGiveNoTable() {
+        assertNull(ColorTable.fromSamples(samples(120, 128, 128, 49), 49));
+        assertNull(ColorTable.fromSamples(samples(120, 133, 124, 49), 49));
+        assertNull(ColorTable.fromSamples(new int[0], 0));
+    }
+
+    @Test
+    public void testsNarrowToContains() {
+        ColorTable fitted = ColorTable.fromSamples(samples(MARKER_Y, MARKER_U, MARKER_V, 49), 49);
+        for (ColorTable table : new ColorTable[] { RANGE, fitted }) {
+            for (int y = 0; y < 256; y += 5) {
+                for (int u = 0; u < 256; u += 3) {
+                    for (int v = 0; v < 256; v += 3) {
+                        if (table.contains(y, u, v)) {
+                            assertTrue(table.containsChroma(u, v));
+                        }
+                        if (table.containsChroma(u, v)) {
+                            assertTrue(table.containsV(v));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.aircanvas;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Times full frame marker scans of a synthetic 1280x720 NV21 frame on the
+ * calling thread and split over {@link TilePool}s of several sizes, with
+ * the speed-up over one thread, and checks every pool finds the marker
+ * where the single thread scan does. Also times an empty job on each pool,
+ * the hand-off a tiled scan has to win back. Run its main with the app
+ * classes on the class path, on a machine with at least as many cores as
+ * the largest pool:
+ *
+ * <pre>
+ * java -cp bin/classes:tests/bin com.aircanvas.MarkerTrackerBenchmark [frames]
+ * </pre>
+ */
+public class MarkerTrackerBenchmark {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int WARMUP_FRAMES = 300;
+    private static final int HANDOFF_JOBS = 20000;
+    private static final int[] THREADS = { 1, 2, 4, 8 };
+
+    public static void main(String[] args) {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        byte[] frame = frame(new Random(1));
+        System.out.println("cores " + Runtime.getRuntime().availableProcessors()
+                + ", " + WIDTH + "x" + HEIGHT + ", " + frames + " frames");
+
+        double singleMillis = 0;
+        float expectedX = Float.NaN;
+        float expectedY = Float.NaN;
+        for (int threads : THREADS) {
+            TilePool pool = threads > 1 ? new TilePool(threads) : null;
+            MarkerTracker tracker = new MarkerTracker(WIDTH, HEIGHT);
+            tracker.setUseWindow(false);
+            tracker.setTilePool(pool);
+            try {
+                for (int i = 0; i < WARMUP_FRAMES; i++) {
+                    tracker.process(frame);
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < frames; i++) {
+                    tracker.process(frame);
+                }
+                long nanos = System.nanoTime() - start;
+
+                if (!tracker.isFound()) {
+                    throw new AssertionError(threads + " threads: marker not found");
+                }
+                double millis = nanos / 1e6 / frames;
+                if (threads == THREADS[0]) {
+                    singleMillis = millis;
+                    expectedX = tracker.getX();
+                    expectedY = tracker.getY();
+                } else if (tracker.getX() != expectedX || tracker.getY() != expectedY) {
+                    throw new AssertionError(threads + " threads: marker at " + tracker.getX()
+                            + ", " + tracker.getY() + ", expected " + expectedX + ", "
+                            + expectedY);
+                }
+                System.out.println(String.format(Locale.US,
+                        "threads %d: %.3f ms/frame, speed-up %.2f, hand-off %.1f us,"
+                        + " marker at %.1f, %.1f", threads, millis, singleMillis / millis,
+                        handoffMicros(pool), tracker.getX(), tracker.getY()));
+            } finally {
+                if (pool != null) {
+                    pool.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the time to run a job of empty tiles on pool, in microseconds.
+     */
+    private static double handoffMicros(TilePool pool) {
+        if (pool == null) {
+            return 0;
+        }
+        TilePool.Task empty = new TilePool.Task() {
+            @Override
+            public void runTile(int tile, int tiles) {
+            }
+        };
+        for (int i = 0; i < HANDOFF_JOBS; i++) {
+            pool.run(empty);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < HANDOFF_JOBS; i++) {
+            pool.run(empty);
+        }
+        return (System.nanoTime() - start) / 1e3 / HANDOFF_JOBS;
+    }
+
+    /**
+     * A frame of noisy, nearly gray background with one 60x40 pixel patch of
+     * the default marker color.
+     */
+    private static byte[] frame(Random random) {
+        byte[] frame = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            frame[i] = (byte) (40 + random.nextInt(60));
+        }
+        for (int i = WIDTH * HEIGHT; i < frame.length; i++) {
+            frame[i] = (byte) (120 + random.nextInt(16));
+        }
+        for (int y = 300; y < 340; y += 2) {
+            for (int x = 600; x < 660; x += 2) {
+                // V then U of the 2x2 block
+                int chroma = WIDTH * HEIGHT + (y / 2) * WIDTH + x;
+                frame[chroma] = (byte) 200;
+                frame[chroma + 1] = (byte) 90;
+                for (int dy = 0; dy < 2; dy++) {
+                    for (int dx = 0; dx < 2; dx++) {
+                        frame[(y + dy) * WIDTH + x + dx] = (byte) 200;
+                    }
+                }
+            }
+        }
+        return frame;
+    }
+
+}
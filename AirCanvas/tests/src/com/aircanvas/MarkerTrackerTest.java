@@ -0,0 +1,236 @@
+package com.aircanvas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Runs synthetic NV21 and packed frames through {@link MarkerTracker#process}:
+ * a noisy, nearly gray background with one rectangle of the default marker
+ * color.
+ */
+public class MarkerTrackerTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 360;
+    private static final int MARKER_Y = 200;
+    private static final int MARKER_U = 90;
+    private static final int MARKER_V = 200;
+
+    /**
+     * Records pen events as "move x y" and "up".
+     */
+    private static class Events implements MarkerTracker.Listener {
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void onMarkerMoved(float x, float y) {
+            events.add("move " + x + " " + y);
+        }
+
+        @Override
+        public void onMarkerUp() {
+            events.add("up");
+        }
+    }
+
+    /**
+     * An NV21 frame with the marker color over [x0, x0 + w) x [y0, y0 + h)
+     * in pixels, all even, or no marker with w = 0.
+     */
+    private static byte[] nv21(int x0, int y0, int w, int h) {
+        Random random = new Random(x0 * 31 + y0);
+        byte[] frame = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            frame[i] = (byte) (40 + random.nextInt(60));
+        }
+        for (int i = WIDTH * HEIGHT; i < frame.length; i++) {
+            frame[i] = (byte) (120 + random.nextInt(16));
+        }
+        for (int y = y0; y < y0 + h; y++) {
+            for (int x = x0; x < x0 + w; x++) {
+                frame[y * WIDTH + x] = (byte) MARKER_Y;
+                // V then U of each 2x2 block
+                int chroma = WIDTH * HEIGHT + (y / 2) * WIDTH + (x & ~1);
+                frame[chroma] = (byte) MARKER_V;
+                frame[chroma + 1] = (byte) MARKER_U;
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * A frame reduced to one Y, U, V, A pixel per block x block pixels, with
+     * the marker over the given pixels, multiples of block.
+     */
+    private static byte[] packed(int block, int x0, int y0, int w, int h) {
+        int columns = WIDTH / block;
+        int rows = HEIGHT / block;
+        byte[] frame = new byte[4 * columns * rows];
+        for (int by = 0; by < rows; by++) {
+            for (int bx = 0; bx < columns; bx++) {
+                int i = 4 * (by * columns + bx);
+                int x = bx * block;
+                int y = by * block;
+                boolean marker = x >= x0 && x < x0 + w && y >= y0 && y < y0 + h;
+                frame[i] = (byte) (marker ? MARKER_Y : 70);
+                frame[i + 1] = (byte) (marker ? MARKER_U : 128);
+                frame[i + 2] = (byte) (marker ? MARKER_V : 128);
+                frame[i + 3] = (byte) 255;
+            }
+        }
+        return frame;
+    }
+
+    @Test
+    public void findsTheCentroid() {
+        MarkerTracker tracker = new MarkerTracker(WIDTH, HEIGHT);
+        assertTrue(tracker.process(nv21(300, 100, 60, 40)));
+        // the mean of the block centers
+        assertEquals(330, tracker.getX(), 1e-3f);
+        assertEquals(120, tracker.getY(), 1e-3f);
+        assertEquals(30 * 20, tracker.getBlockCount());
+
+        assertFalse(tracker.process(nv21(0, 0, 0, 0)));
+    }
+
+    @Test
+    public void ignoresSpecksSmallerThanTheMarker() {
+        MarkerTracker tracker = new MarkerTracker(WIDTH, HEIGHT);
+        assertFalse(tracker.process(nv21(300, 100, 4, 4)));
+    }
+
+    @Test
+    public void debouncesPenDownAndUp() {
+        MarkerTracker tracker = new MarkerTracker(WIDTH, HEIGHT);
+        Events listener = new Events();
+        tracker.setListener(listener);
+        byte[] marker = nv21(300, 100, 60, 40);
+        byte[] empty = nv21(0, 0, 0, 0);
+
+        tracker.process(marker);
+        assertFalse(tracker.isDown());
+        assertTrue(listener.events.isEmpty());
+        tracker.process(marker);
+        assertTrue(tracker.isDown());
+        assertEquals("move 330.0 120.0", listener.events.get(0));
+
+        // a single missed frame does not end the stroke
+        tracker.process(empty);
+        tracker.process(marker);
+        assertTrue(tracker.isDown());
+        assertEquals(2, listener.events.size());
+
+        for (int i = 0; i < 3; i++) {
+            tracker.process(empty);
+            assertTrue(tracker.isDown());
+        }
+        tracker.process(empty);
+        assertFalse(tracker.isDown());
+        assertEquals("up", listener.events.get(listener.events.size() - 1));
+        assertEquals(3, listener.events.size());
+    }
+
+    @Test
+    public void followsSmallMovesInTheWindow() {
+        MarkerTracker tracker = new MarkerTracker(WIDTH, HEIGHT);
+        tracker.process(nv21(300, 100, 60, 40));
+        long fullScans = tracker.getFullScanCount();
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(tracker.process(nv21(300 + 4 * i, 100 + 2 * i, 60, 40)));
+            assertEquals(330 + 4 * i, tracker.getX(), 1e-3f);
+            assertEquals(120 + 2 * i, tracker.getY(), 1e-3f);
+        }
+        assertEquals(fullScans, tracker.getFullScanCount());
+        assertEquals(10, tracker.getWindowFrameCount());
+        assertTrue(tracker.getScannedFraction() < 0.5f);
+    }
+
+    @Test
+    public void fallsBackToACoarseScanWhenTheWindowLosesTheMarker() {
+        MarkerTracker tracker = new MarkerTracker(WIDTH, HEIGHT);
+        Events listener = new Events();
+        tracker.setListener(listener);
+        tracker.process(nv21(60, 40, 60, 40));
+        tracker.process(nv21(60, 40, 60, 40));
+        assertEquals(1, tracker.getWindowFrameCount());
+        long fullScans = tracker.getFullScanCount();
+
+        // far outside the window around the last box
+        assertTrue(tracker.process(nv21(480, 260, 60, 40)));
+        assertEquals(fullScans + 1, tracker.getFullScanCount());
+        assertEquals(1, tracker.getWindowFrameCount());
+        assertEquals(510, tracker.getX(), 1e-3f);
+        assertEquals(280, tracker.getY(), 1e-3f);
+        // found in the same frame, so the stroke goes on
+        assertTrue(tracker.isDown());
+        assertFalse(listener.events.contains("up"));
+
+        // and the window follows it from there
+        assertTrue(tracker.process(nv21(480, 260, 60, 40)));
+        assertEquals(2, tracker.getWindowFrameCount());
+    }
+
+    @Test
+    public void scanningWithoutTheWindowFindsTheSamePosition() {
+        MarkerTracker windowed = new MarkerTracker(WIDTH, HEIGHT);
+        MarkerTracker full = new MarkerTracker(WIDTH, HEIGHT);
+        full.setUseWindow(false);
+        for (int i = 0; i < 5; i++) {
+            byte[] frame = nv21(200 + 10 * i, 100, 60, 40);
+            windowed.process(frame);
+            full.process(frame);
+            assertEquals(full.getX(), windowed.getX(), 1e-3f);
+            assertEquals(full.getY(), windowed.getY(), 1e-3f);
+            assertEquals(full.getBlockCount(), windowed.getBlockCount());
+        }
+        assertEquals(5, full.getFullScanCount());
+    }
+
+    @Test
+    public void readsPackedFrames() {
+        int block = 4;
+        MarkerTracker tracker = MarkerTracker.packed(WIDTH, HEIGHT, block);
+        Events listener = new Events();
+        tracker.setListener(listener);
+        byte[] frame = packed(block, 300, 100, 60, 40);
+
+        assertTrue(tracker.process(frame));
+        // reported in camera frame pixels, at block centers
+        assertEquals(15 * 10, tracker.getBlockCount());
+        assertEquals(block * (75 + 7 + 0.5f), tracker.getX(), 1e-3f);
+        assertEquals(block * (25 + 4.5f + 0.5f), tracker.getY(), 1e-3f);
+
+        tracker.process(frame);
+        assertTrue(tracker.isDown());
+        assertEquals(1, listener.events.size());
+        assertFalse(tracker.process(packed(block, 0, 0, 0, 0)));
+    }
+
+    @Test
+    public void tiledScansMatchTheSingleThreadScan() {
+        TilePool pool = new TilePool(3);
+        try {
+            MarkerTracker tiled = new MarkerTracker(WIDTH, HEIGHT);
+            tiled.setUseWindow(false);
+            tiled.setTilePool(pool);
+            MarkerTracker single = new MarkerTracker(WIDTH, HEIGHT);
+            single.setUseWindow(false);
+            byte[] frame = nv21(300, 100, 60, 40);
+            assertTrue(tiled.process(frame));
+            single.process(frame);
+            assertEquals(single.getX(), tiled.getX(), 0);
+            assertEquals(single.getY(), tiled.getY(), 0);
+            assertEquals(single.getBlockCount(), tiled.getBlockCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
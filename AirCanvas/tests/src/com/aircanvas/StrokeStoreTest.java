@@ -0,0 +1,180 @@
+package com.aircanvas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Stress tests of how {@link StrokeStore#add} splits long strokes over
+ * arenas, on both index paths. Only the staged CPU side copies of the
+ * arenas are checked, so no GL context is needed.
+ */
+public class StrokeStoreTest {
+
+    private static final float[] COLOR = { 1, 0, 0, 1 };
+
+    /**
+     * A small zigzag strip whose vertex i has z = i, so chunks can be
+     * matched back to the stroke; the grid only buckets by x and y.
+     */
+    private static TriLine line(int vertices) {
+        float[] strip = new float[vertices * TriLine.COORDS_PER_VERTEX];
+        for (int i = 0; i < vertices; i++) {
+            strip[i * TriLine.COORDS_PER_VERTEX] = 0.001f * (i % 100);
+            strip[i * TriLine.COORDS_PER_VERTEX + 1] = 0.01f * (i % 2);
+            strip[i * TriLine.COORDS_PER_VERTEX + 2] = i;
+        }
+        return new TriLine(new float[0], strip, COLOR,
+                TriLine.computeBounds(strip, 0, vertices));
+    }
+
+    private static StrokeStore store(boolean intIndices) {
+        StrokeStore store = new StrokeStore();
+        store.setIntIndices(intIndices);
+        return store;
+    }
+
+    /**
+     * Checks that the chunks from first cover vertices [0, vertices) of the
+     * stroke in order, each fitting its arena, consecutive chunks sharing
+     * two vertices, with sequential indices.
+     *
+     * @return - The number of chunks.
+     */
+    private static int checkChunks(StrokeStore store, StrokeStore.Stroke first, int vertices,
+            int arenaVertices) {
+        int chunks = 0;
+        int expectedStart = 0;
+        int end = 0;
+        for (StrokeStore.Stroke chunk = first; chunk != null; chunk = chunk.nextChunk) {
+            assertTrue(chunk.indexCount <= arenaVertices);
+            assertTrue(chunk.firstVertex + chunk.indexCount <= arenaVertices);
+
+            int start = (int) store.getCoordinate(chunk, chunk.firstVertex, 2);
+            assertEquals("chunk " + chunks + " start", expectedStart, start);
+            for (int i = 0; i < chunk.indexCount; i++) {
+                int index = store.getIndex(chunk, chunk.firstIndex + i);
+                assertEquals(chunk.firstVertex + i, index);
+                assertEquals(start + i, store.getCoordinate(chunk, index, 2), 0);
+            }
+            end = start + chunk.indexCount;
+            expectedStart = end - 2;
+            chunks++;
+        }
+        assertEquals(vertices, end);
+        return chunks;
+    }
+
+    private static int expectedChunks(int vertices, int arenaVertices) {
+        // every chunk after the first adds all but the two vertices it shares
+        if (vertices <= arenaVertices) {
+            return 1;
+        }
+        int step = arenaVertices - 2;
+        return 1 + (vertices - arenaVertices + step - 1) / step;
+    }
+
+    @Test
+    public void splitsLongStrokeWithShortIndices() {
+        StrokeStore store = store(false);
+        int vertices = 300000;
+        StrokeStore.Stroke first = store.add(line(vertices));
+        int chunks = checkChunks(store, first, vertices, StrokeStore.SHORT_ARENA_VERTICES);
+        assertEquals(expectedChunks(vertices, StrokeStore.SHORT_ARENA_VERTICES), chunks);
+        assertEquals(chunks, store.getArenaCount());
+    }
+
+    @Test
+    public void splitsLongStrokeWithIntIndices() {
+        StrokeStore store = store(true);
+        int vertices = 500000;
+        StrokeStore.Stroke first = store.add(line(vertices));
+        int chunks = checkChunks(store, first, vertices, StrokeStore.INT_ARENA_VERTICES);
+        assertEquals(expectedChunks(vertices, StrokeStore.INT_ARENA_VERTICES), chunks);
+        // past the 16-bit range within one arena
+        assertTrue(StrokeStore.INT_ARENA_VERTICES > 65536);
+    }
+
+    @Test
+    public void splitsAtArenaBoundary() {
+        int arena = StrokeStore.SHORT_ARENA_VERTICES;
+        for (int vertices = arena - 2; vertices <= arena + 3; vertices++) {
+            StrokeStore store = store(false);
+            StrokeStore.Stroke first = store.add(line(vertices));
+            assertEquals("vertices " + vertices, expectedChunks(vertices, arena),
+                    checkChunks(store, first, vertices, arena));
+        }
+        // a single vertex more than an arena holds needs a three vertex chunk
+        StrokeStore store = store(false);
+        StrokeStore.Stroke first = store.add(line(arena + 1));
+        assertEquals(3, first.nextChunk.indexCount);
+        assertNull(first.nextChunk.nextChunk);
+    }
+
+    @Test
+    public void rollsOverToNewArenas() {
+        StrokeStore store = store(false);
+        int arena = StrokeStore.SHORT_ARENA_VERTICES;
+        StrokeStore.Stroke small = store.add(line(1000));
+        // a full size chunk does not fit behind the small stroke
+        StrokeStore.Stroke long1 = store.add(line(2 * arena));
+        assertEquals(0, store.getArenaIndex(small));
+        assertEquals(1, store.getArenaIndex(long1));
+        checkChunks(store, long1, 2 * arena, arena);
+
+        // the tail of the long stroke left room for a small one, joined by a degenerate pair
+        StrokeStore.Stroke tail = long1;
+        while (tail.nextChunk != null) {
+            tail = tail.nextChunk;
+        }
+        StrokeStore.Stroke after = store.add(line(500));
+        assertEquals(store.getArenaIndex(tail), store.getArenaIndex(after));
+        assertEquals(tail.firstVertex + tail.indexCount, after.firstVertex);
+        assertEquals(tail.firstVertex + tail.indexCount - 1,
+                store.getIndex(after, after.firstIndex - 2));
+        assertEquals(after.firstVertex, store.getIndex(after, after.firstIndex - 1));
+        checkChunks(store, after, 500, arena);
+    }
+
+    @Test
+    public void removedStrokeSpaceIsReused() {
+        StrokeStore store = store(true);
+        store.add(line(1000));
+        StrokeStore.Stroke removed = store.add(line(300000));
+        int arenas = store.getArenaCount();
+        StrokeStore.Stroke last = removed;
+        while (last.nextChunk != null) {
+            last = last.nextChunk;
+        }
+        int lastArena = store.getArenaIndex(last);
+        int lastStart = last.firstVertex;
+
+        store.remove(removed);
+        StrokeStore.Stroke next = store.add(line(100));
+        assertEquals(arenas, store.getArenaCount());
+        assertEquals(lastArena, store.getArenaIndex(next));
+        assertEquals(lastStart, next.firstVertex);
+    }
+
+    @Test
+    public void replaceWithTakesOverTheLoadedArenas() {
+        StrokeStore shown = store(false);
+        shown.add(line(10));
+        StrokeStore loaded = store(false);
+        StrokeStore.Stroke first = loaded.add(line(100000));
+        int arenas = loaded.getArenaCount();
+
+        shown.replaceWith(loaded);
+        assertEquals(arenas, shown.getArenaCount());
+        assertEquals(0, loaded.getArenaCount());
+        assertEquals(0, shown.getArenaIndex(first));
+        assertEquals(2, checkChunks(shown, first, 100000, StrokeStore.SHORT_ARENA_VERTICES));
+
+        // new strokes go after the loaded ones
+        StrokeStore.Stroke next = shown.add(line(100));
+        assertEquals(arenas - 1, shown.getArenaIndex(next));
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.aircanvas;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link StrokeTessellator#tessellateGrowing}, fed a stroke a
+ * few points at a time as it is captured, ends up with the strip
+ * {@link StrokeTessellator#tessellate} gives for the finished stroke.
+ */
+public class StrokeTessellatorTest {
+
+    /**
+     * A wandering stroke with repeated points and a turn straight back.
+     */
+    private static float[] stroke(int points) {
+        Random random = new Random(points);
+        float[] coords = new float[points * 3];
+        float x = 0;
+        float y = 0;
+        for (int i = 0; i < points; i++) {
+            if (i % 7 == 3) {
+                // the pointer held still
+            } else if (i == points / 2) {
+                x -= 2 * (coords[3 * (i - 1)] - coords[3 * (i - 2)]);
+                y -= 2 * (coords[3 * (i - 1) + 1] - coords[3 * (i - 2) + 1]);
+            } else {
+                x += random.nextFloat() * 0.02f;
+                y += (random.nextFloat() - 0.5f) * 0.02f;
+            }
+            coords[3 * i] = x;
+            coords[3 * i + 1] = y;
+            coords[3 * i + 2] = 1;
+        }
+        return coords;
+    }
+
+    @Test
+    public void growingMatchesTheFinishedStrip() {
+        float[] coords = stroke(60);
+        for (StrokeTessellator.Join join : StrokeTessellator.Join.values()) {
+            for (StrokeTessellator.Cap cap : StrokeTessellator.Cap.values()) {
+                StrokeTessellator tessellator = new StrokeTessellator(0.012f, join, cap);
+                FloatList finished = new FloatList(64);
+                int vertices = tessellator.tessellate(coords, 60, finished);
+
+                StrokeTessellator.Progress progress = new StrokeTessellator.Progress();
+                FloatList stable = new FloatList(64);
+                FloatList end = new FloatList(64);
+                for (int count = 1; count <= 60; count += 1 + count % 3) {
+                    end.clear();
+                    int done = tessellator.tessellateGrowing(coords, count, progress, end);
+                    for (int i = 0; i < done * 3; i++) {
+                        stable.add(end.get(i));
+                    }
+                    FloatList soFar = new FloatList(64);
+                    tessellator.tessellate(coords, count, soFar);
+                    // final vertices never change, whatever comes next
+                    for (int i = 0; i < stable.size(); i++) {
+                        assertEquals(join + " " + cap + " " + count,
+                                soFar.get(i), stable.get(i), 0);
+                    }
+                    assertEquals(soFar.size(), stable.size() + end.size() - done * 3);
+                }
+
+                // the last call's provisional end closes the finished strip
+                end.clear();
+                tessellator.tessellateGrowing(coords, 60, progress, end);
+                for (int i = 0; i < end.size(); i++) {
+                    stable.add(end.get(i));
+                }
+                assertEquals(vertices * 3, stable.size());
+                assertArrayEquals(join + " " + cap, finished.toArray(), stable.toArray(), 0);
+            }
+        }
+    }
+
+    @Test
+    public void aSinglePointIsAProvisionalDot() {
+        StrokeTessellator tessellator = new StrokeTessellator(0.012f,
+                StrokeTessellator.Join.ROUND, StrokeTessellator.Cap.ROUND);
+        float[] coords = { 0.5f, 0.5f, 1, 0.5f, 0.5f, 1 };
+        StrokeTessellator.Progress progress = new StrokeTessellator.Progress();
+        FloatList end = new FloatList(64);
+        assertEquals(0, tessellator.tessellateGrowing(coords, 2, progress, end));
+
+        FloatList dot = new FloatList(64);
+        tessellator.tessellate(coords, 2, dot);
+        assertArrayEquals(dot.toArray(), end.toArray(), 0);
+    }
+
+}